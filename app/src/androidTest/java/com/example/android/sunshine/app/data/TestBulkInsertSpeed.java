@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/*
+    Benchmarks the weather insert paths at a normal sync's size, a few saved locations' worth
+    and a stress size: a ContentValues insert() per row as bulkInsert used to do it, and the
+    compiled statement fed ContentValues.  The times are logged under this class's tag; the
+    assertions only check that both paths stored every row.
+ */
+public class TestBulkInsertSpeed extends AndroidTestCase {
+    private static final String LOG_TAG = TestBulkInsertSpeed.class.getSimpleName();
+
+    private static final int[] ROW_COUNTS = {14, 100, 10000};
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private WeatherDbHelper mHelper;
+    private SQLiteDatabase mDb;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mHelper = new WeatherDbHelper(mContext);
+        mDb = mHelper.getWritableDatabase();
+        mLocationId = mDb.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        assertTrue("Error: Failure to insert North Pole Location Values", mLocationId != -1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testInsertPaths() {
+        for (int rowCount : ROW_COUNTS) {
+            // Builds the input inside the timing too: filling ContentValues is part of the cost.
+            long start = SystemClock.elapsedRealtime();
+            int inserted = insertOneByOne(createValues(rowCount));
+            long oneByOneMillis = SystemClock.elapsedRealtime() - start;
+            assertStored(rowCount, inserted);
+
+            start = SystemClock.elapsedRealtime();
+            inserted = WeatherProvider.insertWeather(mDb, createValues(rowCount));
+            long compiledMillis = SystemClock.elapsedRealtime() - start;
+            assertStored(rowCount, inserted);
+
+            Log.d(LOG_TAG, rowCount + " rows: insert() per row " + oneByOneMillis
+                    + "ms, compiled ContentValues " + compiledMillis + "ms");
+        }
+    }
+
+    // What bulkInsert did before it had a compiled statement.
+    private int insertOneByOne(ContentValues[] values) {
+        int count = 0;
+        mDb.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                value.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+                if (mDb.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1) {
+                    count++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return count;
+    }
+
+    private ContentValues[] createValues(int rowCount) {
+        ContentValues[] values = new ContentValues[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            values[i] = TestUtilities.createWeatherValues(mLocationId);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * DAY_MILLIS);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75 + i % 10);
+        }
+        return values;
+    }
+
+    // Checks the rows are all there, then clears the table for the next run.
+    private void assertStored(int rowCount, int inserted) {
+        assertEquals(rowCount, inserted);
+        assertEquals(rowCount, DatabaseUtils.queryNumEntries(mDb,
+                WeatherContract.WeatherEntry.TABLE_NAME));
+        mDb.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+    }
+}
@@ -24,10 +24,16 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /*
@@ -56,11 +62,21 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                SyncMetricsEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -160,6 +176,16 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/sync_metrics/
+        type = mContext.getContentResolver().getType(SyncMetricsEntry.CONTENT_URI);
+        assertEquals("Error: the SyncMetricsEntry CONTENT_URI should return SyncMetricsEntry.CONTENT_TYPE",
+                SyncMetricsEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/hourly/94074
+        type = mContext.getContentResolver().getType(HourlyEntry.buildHourlyLocation(testLocation));
+        assertEquals("Error: the HourlyEntry CONTENT_URI with location should return HourlyEntry.CONTENT_TYPE",
+                HourlyEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +538,429 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // The upsert method should only write rows whose values changed, and say so in its counts.
+    public void testUpsertWeather() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] upsertValues = createBulkInsertWeatherValues(locationRowId);
+
+        Bundle counts = upsert(upsertValues);
+        assertEquals("Error: every row should be new on the first upsert",
+                BULK_INSERT_RECORDS_TO_INSERT,
+                counts.getInt(WeatherEntry.EXTRA_INSERTED));
+
+        // Same values again: nothing should be written.
+        counts = upsert(createBulkInsertWeatherValues(locationRowId));
+        assertEquals(0, counts.getInt(WeatherEntry.EXTRA_INSERTED));
+        assertEquals(0, counts.getInt(WeatherEntry.EXTRA_UPDATED));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, counts.getInt(WeatherEntry.EXTRA_UNCHANGED));
+
+        // Change one day and make sure only that one is updated, in place.
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[3].put(WeatherEntry.COLUMN_MAX_TEMP, 100);
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        counts = upsert(changedValues);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(0, counts.getInt(WeatherEntry.EXTRA_INSERTED));
+        assertEquals(1, counts.getInt(WeatherEntry.EXTRA_UPDATED));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, counts.getInt(WeatherEntry.EXTRA_UNCHANGED));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testUpsertWeather.  Error validating WeatherEntry " + i,
+                    cursor, changedValues[i]);
+        }
+        cursor.close();
+    }
+
+    // A delta should only change the columns it carries, on days that are already stored.
+    public void testApplyWeatherDelta() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] storedValues = createBulkInsertWeatherValues(locationRowId);
+        upsert(storedValues);
+
+        ContentValues changedDay = new ContentValues();
+        changedDay.put(WeatherEntry.COLUMN_DATE,
+                storedValues[2].getAsLong(WeatherEntry.COLUMN_DATE));
+        changedDay.put(WeatherEntry.COLUMN_MAX_TEMP, 100);
+        ContentValues unknownDay = new ContentValues();
+        unknownDay.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE - 1000 * 60 * 60 * 24);
+        unknownDay.put(WeatherEntry.COLUMN_MAX_TEMP, 100);
+
+        Bundle counts = applyDelta(TestUtilities.TEST_LOCATION,
+                new ContentValues[]{changedDay, unknownDay});
+        assertEquals(1, counts.getInt(WeatherEntry.EXTRA_UPDATED));
+        assertEquals("Error: a delta must not insert days", 1,
+                counts.getInt(WeatherEntry.EXTRA_SKIPPED));
+
+        ContentValues expected = new ContentValues(storedValues[2]);
+        expected.put(WeatherEntry.COLUMN_MAX_TEMP, 100);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        expected.getAsLong(WeatherEntry.COLUMN_DATE)),
+                null,
+                null,
+                null,
+                null
+        );
+        TestUtilities.validateCursor("testApplyWeatherDelta.  Error validating the changed day.",
+                cursor, expected);
+
+        counts = applyDelta("no-such-location", new ContentValues[]{changedDay});
+        assertEquals(0, counts.getInt(WeatherEntry.EXTRA_UPDATED));
+        assertEquals(1, counts.getInt(WeatherEntry.EXTRA_SKIPPED));
+    }
+
+    private Bundle applyDelta(String locationSetting, ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putString(WeatherEntry.EXTRA_LOCATION_SETTING, locationSetting);
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, values);
+        return mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_APPLY_DELTA, null, extras);
+    }
+
+    private Bundle upsert(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, values);
+        return mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_UPSERT, null, extras);
+    }
+
+    // Replacing a forecast should upsert the new days and trim the old ones in one go.
+    public void testReplaceForecast() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        long millisecondsInADay = 1000*60*60*24;
+        ContentValues staleValues = TestUtilities.createWeatherValues(locationRowId);
+        staleValues.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE - 2 * millisecondsInADay);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, staleValues);
+
+        ContentValues[] newValues = createBulkInsertWeatherValues(locationRowId);
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, newValues);
+        extras.putLong(WeatherEntry.EXTRA_TRIM_DATE,
+                WeatherContract.normalizeDate(TestUtilities.TEST_DATE - millisecondsInADay));
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        Bundle counts = mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_REPLACE_FORECAST, null, extras);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, counts.getInt(WeatherEntry.EXTRA_INSERTED));
+        assertEquals("Error: the stale day should have been trimmed",
+                1, counts.getInt(WeatherEntry.EXTRA_DELETED));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testReplaceForecast.  Error validating WeatherEntry " + i,
+                    cursor, newValues[i]);
+        }
+        cursor.close();
+    }
+
+    // A write to one day of one location should only wake the observers of that location and
+    // that day, where notifying weather/ used to wake every weather observer there is.
+    public void testTargetedNotifications() {
+        long northPoleRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "94043");
+        otherLocation.put(LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        long otherRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation));
+        ContentValues[] northPoleDays = createBulkInsertWeatherValues(northPoleRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, northPoleDays);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(otherRowId));
+
+        long date = northPoleDays[0].getAsLong(WeatherEntry.COLUMN_DATE);
+        long nextDate = northPoleDays[1].getAsLong(WeatherEntry.COLUMN_DATE);
+        Uri[] uris = {
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, date),
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, nextDate),
+                WeatherEntry.buildWeatherLocation("94043"),
+                WeatherEntry.buildWeatherLocationWithDate("94043", date),
+        };
+        HandlerThread ht = new HandlerThread("ContentObserverThread");
+        ht.start();
+        Handler handler = new Handler(ht.getLooper());
+        TestUtilities.CountingContentObserver[] observers =
+                new TestUtilities.CountingContentObserver[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            observers[i] = new TestUtilities.CountingContentObserver(handler);
+            // As CursorLoaders register, through Cursor.setNotificationUri().
+            mContext.getContentResolver().registerContentObserver(uris[i], true, observers[i]);
+        }
+
+        long rootBefore = WeatherChanges.getRootNotifyCalls();
+        long dayBefore = WeatherChanges.getDayNotifyCalls();
+        ContentValues changed = new ContentValues(northPoleDays[0]);
+        changed.put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, new ContentValues[]{changed});
+        mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_UPSERT, null, extras);
+
+        observers[0].waitForChangesOrFail(1);
+        observers[1].waitForChangesOrFail(1);
+        // Give any stray notification the time to arrive before checking there was none.
+        SystemClock.sleep(500);
+        int woken = 0;
+        for (int i = 0; i < uris.length; i++) {
+            mContext.getContentResolver().unregisterContentObserver(observers[i]);
+            woken += observers[i].getChanges();
+        }
+        ht.quit();
+
+        assertEquals("Error: another day of the same location was woken",
+                0, observers[2].getChanges());
+        assertEquals("Error: another location's list was woken", 0, observers[3].getChanges());
+        assertEquals("Error: another location's day was woken", 0, observers[4].getChanges());
+        assertEquals(rootBefore, WeatherChanges.getRootNotifyCalls());
+        assertEquals(dayBefore + 1, WeatherChanges.getDayNotifyCalls());
+        Log.d(LOG_TAG, "One changed day woke " + woken + " of " + uris.length
+                + " observers, where notifying weather/ would have woken them all");
+    }
+
+    // A shorter forecast replaces a location's longer one: its later days go, while another
+    // location's days are left alone.  With no rows at all the call still trims.
+    public void testReplaceForecastDropsDaysNotSent() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "94043");
+        long otherRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation));
+        ContentValues[] days = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(otherRowId));
+
+        int sent = 3;
+        ContentValues[] shortForecast = new ContentValues[sent];
+        System.arraycopy(days, 0, shortForecast, 0, sent);
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, shortForecast);
+        extras.putLong(WeatherEntry.EXTRA_TRIM_DATE, 0);
+        Bundle counts = mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_REPLACE_FORECAST, null, extras);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - sent,
+                counts.getInt(WeatherEntry.EXTRA_DELETED));
+        assertEquals(sent, countWeatherRows(locationRowId));
+        assertEquals("Error: another location's days should stay",
+                BULK_INSERT_RECORDS_TO_INSERT, countWeatherRows(otherRowId));
+
+        // Every fetch came back 304: nothing to store, but the days that are over still go.
+        extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, new ContentValues[0]);
+        extras.putLong(WeatherEntry.EXTRA_TRIM_DATE, days[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        counts = mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_REPLACE_FORECAST, null, extras);
+        assertEquals(2, counts.getInt(WeatherEntry.EXTRA_DELETED));
+        assertEquals(sent - 1, countWeatherRows(locationRowId));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, countWeatherRows(otherRowId));
+    }
+
+    private int countWeatherRows(long locationRowId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(locationRowId)},
+                null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    // Inserting or getting a location should always hand back the same row, and only rewrite it
+    // when the city name or coordinates changed.
+    public void testInsertOrGetLocation() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = insertOrGetLocation(testValues);
+        assertTrue("Error: the location should have been inserted", locationRowId != -1);
+        assertEquals("Error: the same location should get the same row",
+                locationRowId, insertOrGetLocation(TestUtilities.createNorthPoleLocationValues()));
+
+        ContentValues movedValues = TestUtilities.createNorthPoleLocationValues();
+        movedValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        movedValues.put(LocationEntry.COLUMN_COORD_LAT, 64.75);
+
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true, locationObserver);
+        assertEquals("Error: a changed location should keep its row",
+                locationRowId, insertOrGetLocation(movedValues));
+        locationObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: there should only be one location", 1, cursor.getCount());
+        TestUtilities.validateCursor("testInsertOrGetLocation.  Error validating LocationEntry.",
+                cursor, movedValues);
+    }
+
+    // SQLite only hands a REAL back as a string to 6 significant digits, so a location with
+    // precise coordinates must still be seen as unchanged the second time round.
+    public void testInsertOrGetLocationWithPreciseCoordinates() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        testValues.put(LocationEntry.COLUMN_COORD_LAT, 37.386051);
+        testValues.put(LocationEntry.COLUMN_COORD_LONG, -122.0838);
+        long locationRowId = insertOrGetLocation(testValues);
+
+        HandlerThread ht = new HandlerThread("ContentObserverThread");
+        ht.start();
+        TestUtilities.CountingContentObserver locationObserver =
+                new TestUtilities.CountingContentObserver(new Handler(ht.getLooper()));
+        mContext.getContentResolver().registerContentObserver(
+                LocationEntry.CONTENT_URI, true, locationObserver);
+        assertEquals(locationRowId, insertOrGetLocation(new ContentValues(testValues)));
+        // Give a stray notification the time to arrive before checking there was none.
+        SystemClock.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        ht.quit();
+
+        assertEquals("Error: an unchanged location was rewritten",
+                0, locationObserver.getChanges());
+    }
+
+    private long insertOrGetLocation(ContentValues values) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(LocationEntry.EXTRA_VALUES, values);
+        return mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_INSERT_OR_GET, null, extras)
+                .getLong(LocationEntry.EXTRA_LOCATION_ID);
+    }
+
+    // The sync metrics table only keeps the most recent MAX_ROWS syncs.
+    public void testSyncMetricsRingBuffer() {
+        int recordsToInsert = SyncMetricsEntry.MAX_ROWS + 5;
+        for (int i = 0; i < recordsToInsert; i++) {
+            mContext.getContentResolver().insert(SyncMetricsEntry.CONTENT_URI,
+                    TestUtilities.createSyncMetricsValues(TestUtilities.TEST_DATE + i));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                SyncMetricsEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                SyncMetricsEntry.COLUMN_START_TIME + " ASC"
+        );
+        assertEquals("Error: the sync metrics table grew past MAX_ROWS",
+                SyncMetricsEntry.MAX_ROWS, cursor.getCount());
+
+        // The oldest records are the ones that should have gone.
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testSyncMetricsRingBuffer.  Error validating oldest record",
+                cursor, TestUtilities.createSyncMetricsValues(
+                        TestUtilities.TEST_DATE + recordsToInsert - SyncMetricsEntry.MAX_ROWS));
+        cursor.close();
+    }
+
+    /*
+        Stores two days of 3 hour steps, plus steps for another location, and checks that a
+        window query returns just the first location's steps in the window, in time order.
+     */
+    public void testHourlyWindowQuery() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "other");
+        long otherLocationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation));
+
+        long start = TestUtilities.TEST_DATE;
+        int steps = 16;
+        ContentValues[] values = new ContentValues[steps * 2];
+        for (int i = 0; i < steps; i++) {
+            long timestamp = start + i * HourlyEntry.STEP_MILLIS;
+            values[i] = TestUtilities.createHourlyValues(locationRowId, timestamp);
+            values[steps + i] = TestUtilities.createHourlyValues(otherLocationRowId, timestamp);
+        }
+        assertEquals(steps * 2,
+                mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, values));
+
+        // Writing a step again replaces it rather than adding a row.
+        mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                new ContentValues[]{TestUtilities.createHourlyValues(locationRowId, start)});
+
+        // "The next 24 hours" from the third step: steps 2 to 9.
+        long windowStart = start + 2 * HourlyEntry.STEP_MILLIS;
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithWindow(TestUtilities.TEST_LOCATION,
+                        windowStart, windowStart + 8 * HourlyEntry.STEP_MILLIS),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: the window should hold 8 steps", 8, cursor.getCount());
+        int timestampIndex = cursor.getColumnIndex(HourlyEntry.COLUMN_TIMESTAMP);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals("Error: steps should come back in time order",
+                    windowStart + i * HourlyEntry.STEP_MILLIS, cursor.getLong(timestampIndex));
+        }
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(steps * 2, cursor.getCount());
+        cursor.close();
+    }
+
+    // Steps stored in batches through the quiet call don't wake hourly observers; the ingester
+    // tells them once, when the location is done.
+    public void testInsertHourlyQuietly() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = new ContentValues[4];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = TestUtilities.createHourlyValues(locationRowId,
+                    TestUtilities.TEST_DATE + i * HourlyEntry.STEP_MILLIS);
+        }
+
+        HandlerThread ht = new HandlerThread("ContentObserverThread");
+        ht.start();
+        TestUtilities.CountingContentObserver hourlyObserver =
+                new TestUtilities.CountingContentObserver(new Handler(ht.getLooper()));
+        mContext.getContentResolver().registerContentObserver(
+                HourlyEntry.CONTENT_URI, true, hourlyObserver);
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(HourlyEntry.EXTRA_VALUES, values);
+        Bundle result = mContext.getContentResolver().call(
+                HourlyEntry.CONTENT_URI, HourlyEntry.METHOD_INSERT_QUIETLY, null, extras);
+        // Give a stray notification the time to arrive before checking there was none.
+        SystemClock.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(hourlyObserver);
+        ht.quit();
+
+        assertEquals(values.length, result.getInt(HourlyEntry.EXTRA_INSERTED));
+        assertEquals("Error: a quiet insert notified hourly observers",
+                0, hourlyObserver.getChanges());
+        Cursor cursor = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(values.length, cursor.getCount());
+        cursor.close();
+    }
 }
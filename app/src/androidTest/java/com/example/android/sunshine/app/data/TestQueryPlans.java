@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the SQL behind each of the provider's routes, with the selections
+    the app actually uses, and fails if any of them falls back to scanning a table or sorting in a
+    temporary b-tree.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    // As ForecastFragment asks for them.  The widgets and Muzei ask for a subset.
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // As DetailFragment asks for them.
+    private static final String[] DETAIL_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    private static final String DATE_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherDbHelper mHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mHelper = new WeatherDbHelper(mContext);
+        mDb = mHelper.getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        super.tearDown();
+    }
+
+    // "weather/*" with a start date, as the forecast list, the widgets and Muzei query it.
+    public void testWeatherWithLocationAndStartDate() {
+        String sql = WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                FORECAST_COLUMNS, WeatherProvider.sLocationSettingWithStartDateSelection,
+                null, null, DATE_ORDER, null);
+        List<String> plan = assertNoScans("weather/*?date=", sql, "94043", "1419033600");
+        assertUsesIndex(plan, "COVERING INDEX " + WeatherDbHelper.WEATHER_LOCATION_FORECAST_INDEX);
+    }
+
+    // "weather/*" without a start date.
+    public void testWeatherWithLocation() {
+        String sql = WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                FORECAST_COLUMNS, WeatherProvider.sLocationSettingSelection,
+                null, null, DATE_ORDER, null);
+        List<String> plan = assertNoScans("weather/*", sql, "94043");
+        assertUsesIndex(plan, "COVERING INDEX " + WeatherDbHelper.WEATHER_LOCATION_FORECAST_INDEX);
+    }
+
+    // "weather/*/#", as the detail view queries it.
+    public void testWeatherWithLocationAndDate() {
+        String sql = WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                DETAIL_COLUMNS, WeatherProvider.sLocationSettingAndDaySelection,
+                null, null, null, null);
+        List<String> plan = assertNoScans("weather/*/#", sql, "94043", "1419033600");
+        assertUsesIndex(plan, "(" + WeatherEntry.COLUMN_LOC_KEY + "=? AND "
+                + WeatherEntry.COLUMN_DATE + "=?)");
+    }
+
+    // "weather", as the upsert loads a location's stored rows.
+    public void testWeather() {
+        String sql = selectFrom(WeatherEntry.TABLE_NAME,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", null);
+        assertNoScans("weather", sql, "1");
+    }
+
+    // "location", as the location registry and the sync look a setting up.
+    public void testLocation() {
+        String sql = selectFrom(LocationEntry.TABLE_NAME,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null);
+        assertNoScans("location", sql, "94043");
+    }
+
+    // "sync_metrics", reading the rows recorded since the last one seen.
+    public void testSyncMetrics() {
+        String sql = selectFrom(SyncMetricsEntry.TABLE_NAME,
+                SyncMetricsEntry._ID + " > ?", SyncMetricsEntry._ID + " ASC");
+        assertNoScans("sync_metrics", sql, "0");
+    }
+
+    // "hourly/*", the window query.
+    public void testHourlyWithLocation() {
+        String sql = WeatherProvider.sHourlyByLocationSettingQueryBuilder.buildQuery(
+                null, WeatherProvider.sLocationSettingWithWindowSelection, null, null,
+                HourlyEntry.TABLE_NAME + "." + HourlyEntry.COLUMN_TIMESTAMP + " ASC", null);
+        List<String> plan = assertNoScans("hourly/*", sql, "94043", "0", "86400000");
+        assertUsesIndex(plan, WeatherDbHelper.HOURLY_LOCATION_TIMESTAMP_INDEX);
+    }
+
+    // "hourly", as the ingester trims steps that are over.
+    public void testHourly() {
+        String sql = selectFrom(HourlyEntry.TABLE_NAME,
+                HourlyEntry.COLUMN_LOC_KEY + " = ? AND " + HourlyEntry.COLUMN_TIMESTAMP + " < ?",
+                null);
+        assertNoScans("hourly", sql, "1", "0");
+    }
+
+    private List<String> explain(String sql, String... args) {
+        List<String> plan = new ArrayList<String>();
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private List<String> assertNoScans(String route, String sql, String... args) {
+        List<String> plan = explain(sql, args);
+        assertFalse("Error: No plan for " + route, plan.isEmpty());
+        for (String step : plan) {
+            // "SCAN TABLE weather" on older SQLite, "SCAN weather" on newer.
+            assertFalse("Error: " + route + " scans a table: " + plan, step.startsWith("SCAN"));
+            assertFalse("Error: " + route + " sorts its results: " + plan,
+                    step.contains("TEMP B-TREE"));
+        }
+        return plan;
+    }
+
+    private static void assertUsesIndex(List<String> plan, String index) {
+        for (String step : plan) {
+            if (step.contains(index)) {
+                return;
+            }
+        }
+        fail("Error: Expected " + index + " in " + plan);
+    }
+
+    // The plain routes run SQLiteDatabase.query() on a single table, which builds this.
+    private static String selectFrom(String table, String selection, String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false, table, null, selection, null, null,
+                sortOrder, null);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/*
+    Benchmarks how long the forecast list's query takes while a sync is writing, with the
+    rollback journal and with write-ahead logging.  The numbers are logged under this class's
+    tag; the assertions only check that the readers got through and the checkpoint policy ran.
+ */
+public class TestReaderLatency extends AndroidTestCase {
+    private static final String LOG_TAG = TestReaderLatency.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "reader_latency.db";
+    private static final long DAY_SECONDS = 24 * 60 * 60;
+
+    // Each simulated sync rewrites this many days in one transaction.
+    private static final int ROWS_PER_SYNC = 400;
+    private static final int SYNCS = 10;
+    private static final long PAUSE_BETWEEN_SYNCS_MILLIS = 20;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testReaderLatencyUnderSync() throws Exception {
+        List<Long> rollback = measure(false);
+        mContext.deleteDatabase(DATABASE_NAME);
+        List<Long> wal = measure(true);
+
+        Log.d(LOG_TAG, "Rollback journal: " + describe(rollback));
+        Log.d(LOG_TAG, "Write-ahead log:  " + describe(wal));
+        assertFalse("No reads finished with the rollback journal", rollback.isEmpty());
+        assertFalse("No reads finished with write-ahead logging", wal.isEmpty());
+    }
+
+    public void testCheckpointPolicy() {
+        // Any log at all is over the limit, so every write is followed by a checkpoint.
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, DATABASE_NAME, true,
+                new WeatherDbHelper.CheckpointPolicy(0,
+                        WeatherDbHelper.CheckpointPolicy.MODE_RESTART));
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertTrue(db.isWriteAheadLoggingEnabled());
+
+            writeSync(db, insertLocation(db), 0);
+            int checkpoints = helper.getCheckpointCount();
+            helper.onWriteFinished(db);
+            assertEquals(checkpoints + 1, helper.getCheckpointCount());
+            assertTrue("Nothing should be holding the log",
+                    helper.checkpoint(db, WeatherDbHelper.CheckpointPolicy.MODE_FULL));
+
+            // Inside a transaction the write isn't finished yet.
+            db.beginTransaction();
+            try {
+                helper.onWriteFinished(db);
+            } finally {
+                db.endTransaction();
+            }
+            assertEquals(checkpoints + 2, helper.getCheckpointCount());
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Runs the simulated syncs on one thread while another keeps running the forecast list's
+     * query.
+     *
+     * @return how long each query took, in milliseconds
+     */
+    private List<Long> measure(boolean writeAheadLogging) throws Exception {
+        final WeatherDbHelper helper = new WeatherDbHelper(mContext, DATABASE_NAME,
+                writeAheadLogging, WeatherDbHelper.CheckpointPolicy.DEFAULT);
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            final long locationId = insertLocation(db);
+            writeSync(db, locationId, 0);
+
+            final CountDownLatch writerDone = new CountDownLatch(1);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 1; i <= SYNCS; i++) {
+                            writeSync(db, locationId, i);
+                            helper.onWriteFinished(db);
+                            SystemClock.sleep(PAUSE_BETWEEN_SYNCS_MILLIS);
+                        }
+                    } finally {
+                        writerDone.countDown();
+                    }
+                }
+            });
+
+            List<Long> latencies = new ArrayList<Long>();
+            String[] selectionArgs =
+                    {Long.toString(locationId), Long.toString(TestUtilities.TEST_DATE)};
+            writer.start();
+            while (writerDone.getCount() > 0) {
+                long start = SystemClock.elapsedRealtime();
+                Cursor cursor = helper.getReadableDatabase().query(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        null,
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                        selectionArgs,
+                        null,
+                        null,
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+                // The query only runs once the cursor is filled.
+                cursor.getCount();
+                cursor.close();
+                latencies.add(SystemClock.elapsedRealtime() - start);
+            }
+            writer.join();
+            return latencies;
+        } finally {
+            helper.close();
+        }
+    }
+
+    private static long insertLocation(SQLiteDatabase db) {
+        long locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        assertTrue("Error: Failure to insert North Pole Location Values", locationId != -1);
+        return locationId;
+    }
+
+    /**
+     * Rewrites every day in one transaction, the way a sync's upsert holds the database.
+     */
+    private static void writeSync(SQLiteDatabase db, long locationId, int sync) {
+        db.beginTransaction();
+        try {
+            for (int day = 0; day < ROWS_PER_SYNC; day++) {
+                ContentValues values = TestUtilities.createWeatherValues(locationId);
+                values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                        TestUtilities.TEST_DATE + day * DAY_SECONDS);
+                values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75 + sync);
+                db.insertWithOnConflict(WeatherContract.WeatherEntry.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String describe(List<Long> latencies) {
+        if (latencies.isEmpty()) {
+            return "no reads";
+        }
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        return sorted.size() + " reads, median " + sorted.get(sorted.size() / 2) + "ms, p95 "
+                + sorted.get(sorted.size() * 95 / 100) + "ms, max "
+                + sorted.get(sorted.size() - 1) + "ms";
+    }
+}
@@ -29,6 +29,7 @@ import com.example.android.sunshine.app.utils.PollingCheck;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
     Students: These are functions and some test data to make it easier to test your database and
@@ -92,6 +93,47 @@ public class TestUtilities extends AndroidTestCase {
         return testValues;
     }
 
+    static ContentValues createHourlyValues(long locationRowId, long timestamp) {
+        ContentValues hourlyValues = new ContentValues();
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TIMESTAMP, timestamp);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, 1.1);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, 1.2);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, 1.3);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP, 70);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, "Asteroids");
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, 5.5);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, 321);
+        return hourlyValues;
+    }
+
+    static ContentValues createSyncMetricsValues(long startTime) {
+        ContentValues testValues = new ContentValues();
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_START_TIME, startTime);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_DURATION, 850);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_LOCATIONS, 1);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_NETWORK_TYPE, "wifi");
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_CONNECT_TIME, 120);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_TTFB, 310);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_BYTES_READ, 5432);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_PARSE_TIME, 45);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_ROWS_INSERTED, 1);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_ROWS_UPDATED, 13);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_ROWS_DELETED, 1);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_FAN_OUT_TIME, 600);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_WATCH_TIME, 40);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_WIDGETS_TIME, 5);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_MUZEI_TIME, -1);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_NOTIFICATION_TIME, 590);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_CACHE_HITS, 0);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_CACHE_MISSES, 1);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_CACHE_BYTES, 2048);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_DAYS_ACCEPTED, 13);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_DAYS_QUARANTINED, 1);
+        testValues.put(WeatherContract.SyncMetricsEntry.COLUMN_OUTCOME, 0);
+        return testValues;
+    }
+
     /*
         Students: You can uncomment this function once you have finished creating the
         LocationEntry part of the WeatherContract as well as the WeatherDbHelper.
@@ -163,4 +205,39 @@ public class TestUtilities extends AndroidTestCase {
     static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
+
+    /*
+        Counts how often it is woken, so a test can check which observers a write reached and
+        which it left alone.
+     */
+    static class CountingContentObserver extends ContentObserver {
+        private final AtomicInteger mChanges = new AtomicInteger();
+
+        CountingContentObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mChanges.incrementAndGet();
+        }
+
+        int getChanges() {
+            return mChanges.get();
+        }
+
+        public void waitForChangesOrFail(final int changes) {
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mChanges.get() >= changes;
+                }
+            }.run();
+        }
+    }
 }
@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves forecasts from an HTTP server running inside the app's own process, so the whole sync
+ * path (connection, conditional requests, streaming parse, cache, database) can be load tested
+ * and benchmarked without OpenWeatherMap or a network.
+ *
+ * Each location gets the payload recorded for it with {@link #addRecording} (or
+ * {@link #addHourlyRecording} for the 3 hour forecast), or a made-up OWM response if nothing was
+ * recorded.  A {@link Profile} decides how slow the server is, how often
+ * it fails, and how big its payloads are.  Responses carry an ETag, and a matching If-None-Match
+ * gets a 304, just like the real server.
+ *
+ * Call {@link #close()} when done, which stops the server.
+ */
+class ReplayWeatherSource implements WeatherSource, Closeable {
+    private static final String LOG_TAG = ReplayWeatherSource.class.getSimpleName();
+
+    static final String ENDPOINT = "replay";
+
+    private static final String FORECAST_PATH = "/forecast";
+    private static final String HOURLY_FORECAST_PATH = "/forecast/hourly";
+    private static final String KEY_PARAM = "key";
+    private static final String QUERY_PARAM = "q";
+    private static final String LAT_PARAM = "lat";
+    private static final String LON_PARAM = "lon";
+    private static final String COUNT_PARAM = "cnt";
+
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final int SOCKET_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long DAY_IN_SECONDS = 24 * 60 * 60;
+    private static final long STEP_IN_SECONDS = 3 * 60 * 60;
+
+    // Profile.failureCode for a server that hangs up without answering.
+    static final int FAILURE_DROP_CONNECTION = 0;
+
+    /**
+     * How the server behaves.  Latency is added before the response headers go out, so it shows
+     * up as time to first byte.
+     */
+    static class Profile {
+        final long latencyMillis;
+        // Latency varies by up to this much either way.
+        final long latencyJitterMillis;
+        // Fraction of requests, from 0 to 1, that fail.
+        final float failureRate;
+        // The HTTP status failed requests get, or FAILURE_DROP_CONNECTION.
+        final int failureCode;
+        // How many days a made-up daily payload holds; hourly ones hold 8 steps a day.
+        final int days;
+        // Extra bytes added to every payload, in a field the parser skips.
+        final int paddingBytes;
+
+        Profile(long latencyMillis, long latencyJitterMillis, float failureRate, int failureCode,
+                int days, int paddingBytes) {
+            this.latencyMillis = latencyMillis;
+            this.latencyJitterMillis = latencyJitterMillis;
+            this.failureRate = failureRate;
+            this.failureCode = failureCode;
+            this.days = days;
+            this.paddingBytes = paddingBytes;
+        }
+    }
+
+    // Answers straight away and never fails.
+    static final Profile PROFILE_LOCAL = new Profile(0, 0, 0f, 503, 14, 0);
+    // Roughly a mobile connection to OWM on a good day.
+    static final Profile PROFILE_MOBILE = new Profile(400, 200, 0.02f, 503, 14, 0);
+    // A struggling server: slow, and failing every few requests in both ways it can.
+    static final Profile PROFILE_FLAKY = new Profile(1500, 1000, 0.3f, 503, 14, 0);
+    static final Profile PROFILE_DROPPING =
+            new Profile(1500, 1000, 0.3f, FAILURE_DROP_CONNECTION, 14, 0);
+    // A payload many times the usual size, to see how parsing and caching scale.
+    static final Profile PROFILE_LARGE_PAYLOAD = new Profile(0, 0, 0f, 503, 14, 512 * 1024);
+
+    private final Profile mProfile;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> mRecordings = new ConcurrentHashMap<String, byte[]>();
+    private final Random mRandom = new Random();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mFailureCount = new AtomicInteger();
+
+    /**
+     * Starts the server on a free port on the loopback interface.
+     */
+    ReplayWeatherSource(Profile profile) throws IOException {
+        mProfile = profile;
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * Serves this payload, exactly as given apart from any padding, for a request's location.
+     */
+    void addRecording(ForecastFetcher.Request request, byte[] payload) {
+        mRecordings.put(getRecordingKey(FORECAST_PATH, ForecastFetcher.getLocationKey(request)),
+                payload);
+    }
+
+    /**
+     * Serves this 3 hour forecast payload for a request's location.
+     */
+    void addHourlyRecording(ForecastFetcher.Request request, byte[] payload) {
+        mRecordings.put(getRecordingKey(HOURLY_FORECAST_PATH,
+                ForecastFetcher.getLocationKey(request)), payload);
+    }
+
+    /**
+     * Reads a recorded payload, e.g. from the test assets, and serves it for a request's
+     * location.  The stream is closed.
+     */
+    void addRecording(ForecastFetcher.Request request, InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            addRecording(request, out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return how many requests the server has answered, or failed on purpose
+     */
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return how many requests the profile made fail
+     */
+    int getFailureCount() {
+        return mFailureCount.get();
+    }
+
+    @Override
+    public String getEndpoint() {
+        // Not the URL: the port changes every run, and its health shouldn't be remembered.
+        return ENDPOINT;
+    }
+
+    @Override
+    public URL getForecastUrl(ForecastFetcher.Request request, int days) throws IOException {
+        return buildUrl(FORECAST_PATH, request, days);
+    }
+
+    @Override
+    public URL getHourlyForecastUrl(ForecastFetcher.Request request, int steps)
+            throws IOException {
+        return buildUrl(HOURLY_FORECAST_PATH, request, steps);
+    }
+
+    private URL buildUrl(String path, ForecastFetcher.Request request, int count)
+            throws IOException {
+        Uri.Builder uriBuilder = new Uri.Builder()
+                .scheme("http")
+                .encodedAuthority("127.0.0.1:" + mServerSocket.getLocalPort())
+                .path(path)
+                .appendQueryParameter(KEY_PARAM, ForecastFetcher.getLocationKey(request));
+        if (request.hasLatLon()) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, request.latitude)
+                    .appendQueryParameter(LON_PARAM, request.longitude);
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, request.locationSetting);
+        }
+        uriBuilder.appendQueryParameter(COUNT_PARAM, Integer.toString(count));
+        return new URL(uriBuilder.build().toString());
+    }
+
+    @Override
+    public OwmForecastParser.Forecast parse(InputStream in) throws JSONException, IOException {
+        // Recordings are OWM responses.
+        return OwmForecastParser.parse(in);
+    }
+
+    @Override
+    public int parseHourly(InputStream in, OwmHourlyParser.StepHandler handler)
+            throws JSONException, IOException {
+        return OwmHourlyParser.parse(in, handler);
+    }
+
+    @Override
+    public void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error closing server socket", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed under us, which is how the server is stopped.
+                return;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Shutting down.
+                closeQuietly(socket);
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String ifNoneMatch = null;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && HEADER_IF_NONE_MATCH.equalsIgnoreCase(
+                        line.substring(0, colon).trim())) {
+                    ifNoneMatch = line.substring(colon + 1).trim();
+                }
+            }
+            mRequestCount.incrementAndGet();
+
+            Thread.sleep(getLatencyMillis());
+
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            if (mRandom.nextFloat() < mProfile.failureRate) {
+                mFailureCount.incrementAndGet();
+                if (mProfile.failureCode != FAILURE_DROP_CONNECTION) {
+                    writeResponse(out, mProfile.failureCode, null, new byte[0]);
+                }
+                return;
+            }
+
+            String[] parts = requestLine.split(" ");
+            Uri uri = parts.length > 1 ? Uri.parse("http://localhost" + parts[1]) : Uri.EMPTY;
+            String path = uri.getPath();
+            if (!(FORECAST_PATH.equals(path) || HOURLY_FORECAST_PATH.equals(path))
+                    || uri.getQueryParameter(KEY_PARAM) == null) {
+                writeResponse(out, 404, null, new byte[0]);
+                return;
+            }
+            byte[] payload = getPayload(uri);
+            String etag = "\"" + Integer.toHexString(Arrays.hashCode(payload)) + "\"";
+            if (etag.equals(ifNoneMatch)) {
+                writeResponse(out, 304, etag, new byte[0]);
+            } else {
+                writeResponse(out, 200, etag, payload);
+            }
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error serving request: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Stopped while waiting out the latency.
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private long getLatencyMillis() {
+        if (mProfile.latencyJitterMillis <= 0) {
+            return mProfile.latencyMillis;
+        }
+        long jitter = (long) ((mRandom.nextFloat() * 2 - 1) * mProfile.latencyJitterMillis);
+        return Math.max(0, mProfile.latencyMillis + jitter);
+    }
+
+    private byte[] getPayload(Uri uri) throws IOException {
+        boolean hourly = HOURLY_FORECAST_PATH.equals(uri.getPath());
+        byte[] payload = mRecordings.get(getRecordingKey(uri.getPath(),
+                uri.getQueryParameter(KEY_PARAM)));
+        if (payload == null) {
+            String json = hourly ? buildHourlyPayload(uri) : buildPayload(uri);
+            payload = json.getBytes("UTF-8");
+        }
+        if (mProfile.paddingBytes <= 0) {
+            return payload;
+        }
+
+        // Slip the padding in as the first field of the top level object.
+        String json = new String(payload, "UTF-8");
+        int open = json.indexOf('{');
+        if (open < 0) {
+            return payload;
+        }
+        StringBuilder padded = new StringBuilder(json.length() + mProfile.paddingBytes + 16);
+        padded.append(json, 0, open + 1).append("\"padding\":\"");
+        for (int i = 0; i < mProfile.paddingBytes; i++) {
+            padded.append('x');
+        }
+        padded.append("\",").append(json, open + 1, json.length());
+        return padded.toString().getBytes("UTF-8");
+    }
+
+    private static String getRecordingKey(String path, String key) {
+        return path + "|" + key;
+    }
+
+    /**
+     * Makes up a response in OWM's daily forecast format.  The weather shifts a little from day
+     * to day so the rows aren't all the same.
+     */
+    private String buildPayload(Uri uri) {
+        int days = getCount(uri, mProfile.days);
+
+        StringBuilder json = new StringBuilder(256 + days * 256);
+        json.append('{');
+        appendCity(json, uri);
+        json.append(",\"cod\":\"200\",\"message\":0,\"cnt\":").append(days)
+                .append(",\"list\":[");
+        // Starts at midnight UTC, so the payload, and its ETag, only change once a day.
+        long dt = System.currentTimeMillis() / DAY_IN_SECONDS / 1000 * DAY_IN_SECONDS;
+        for (int i = 0; i < days; i++) {
+            double max = 20 + (i % 5);
+            double min = 10 + (i % 3);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US, "{\"dt\":%d,\"temp\":{\"day\":%.2f,"
+                            + "\"min\":%.2f,\"max\":%.2f,\"night\":%.2f,\"eve\":%.2f,"
+                            + "\"morn\":%.2f},\"pressure\":%.2f,\"humidity\":%d,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"%s\",\"description\":\"%s\","
+                            + "\"icon\":\"01d\"}],\"speed\":%.2f,\"deg\":%d,\"clouds\":0}",
+                    dt + i * DAY_IN_SECONDS, max, min, max, min, max, min, 1010.0 + i,
+                    60 + i % 20, i % 2 == 0 ? 800 : 500, i % 2 == 0 ? "Clear" : "Rain",
+                    i % 2 == 0 ? "sky is clear" : "light rain", 2.0 + i % 4, (i * 45) % 360));
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Makes up a response in OWM's 3 hour forecast format, starting from the current step.
+     */
+    private String buildHourlyPayload(Uri uri) {
+        int steps = getCount(uri, mProfile.days * 8);
+
+        StringBuilder json = new StringBuilder(256 + steps * 320);
+        json.append("{\"cod\":\"200\",\"message\":0,\"cnt\":").append(steps)
+                .append(",\"list\":[");
+        // Steps start on multiples of 3 hours UTC, like OWM's.
+        long dt = System.currentTimeMillis() / STEP_IN_SECONDS / 1000 * STEP_IN_SECONDS;
+        for (int i = 0; i < steps; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US, "{\"dt\":%d,\"main\":{\"temp\":%.2f,"
+                            + "\"temp_min\":%.2f,\"temp_max\":%.2f,\"pressure\":%.2f,"
+                            + "\"humidity\":%d},\"weather\":[{\"id\":%d,\"main\":\"%s\","
+                            + "\"description\":\"%s\",\"icon\":\"01d\"}],\"clouds\":{\"all\":0},"
+                            + "\"wind\":{\"speed\":%.2f,\"deg\":%d}}",
+                    dt + i * STEP_IN_SECONDS, 15.0 + i % 8, 14.0 + i % 8, 16.0 + i % 8,
+                    1010.0 + i % 5, 60 + i % 20, i % 4 == 0 ? 500 : 800,
+                    i % 4 == 0 ? "Rain" : "Clear", i % 4 == 0 ? "light rain" : "sky is clear",
+                    2.0 + i % 4, (i * 45) % 360));
+        }
+        json.append("],");
+        appendCity(json, uri);
+        json.append('}');
+        return json.toString();
+    }
+
+    private static void appendCity(StringBuilder json, Uri uri) {
+        String cityName = uri.getQueryParameter(QUERY_PARAM);
+        if (cityName == null) {
+            cityName = "Replay";
+        }
+        double lat = parseDouble(uri.getQueryParameter(LAT_PARAM), 37.4);
+        double lon = parseDouble(uri.getQueryParameter(LON_PARAM), -122.1);
+        json.append("\"city\":{\"id\":0,\"name\":\"").append(escape(cityName))
+                .append("\",\"coord\":{\"lon\":").append(lon).append(",\"lat\":").append(lat)
+                .append("},\"country\":\"\",\"population\":0}");
+    }
+
+    // The smaller of what was asked for and what the profile allows.
+    private static int getCount(Uri uri, int max) {
+        String requested = uri.getQueryParameter(COUNT_PARAM);
+        if (requested != null) {
+            try {
+                return Math.min(max, Integer.parseInt(requested));
+            } catch (NumberFormatException e) {
+                // use the profile's count
+            }
+        }
+        return max;
+    }
+
+    private static void writeResponse(OutputStream out, int code, String etag, byte[] body)
+            throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(code).append(' ').append(getReasonPhrase(code))
+                .append("\r\n");
+        headers.append("Content-Type: application/json; charset=utf-8\r\n");
+        headers.append("Content-Length: ").append(body.length).append("\r\n");
+        if (etag != null) {
+            headers.append("ETag: ").append(etag).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+        out.write(body);
+        out.flush();
+    }
+
+    private static String getReasonPhrase(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 304:
+                return "Not Modified";
+            case 404:
+                return "Not Found";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Error";
+        }
+    }
+
+    private static double parseDouble(String value, double fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
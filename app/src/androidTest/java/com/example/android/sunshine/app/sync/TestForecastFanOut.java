@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that fan-out works out what changed correctly, since that decides which consumers
+    get woken up.
+ */
+public class TestForecastFanOut extends AndroidTestCase {
+
+    private static final long TEST_DATE = 1419033600L;  // December 20th, 2014
+
+    public void testNothingChanged() {
+        assertEquals(0, ForecastFanOut.getChanges(createToday(), createToday(), false));
+        assertEquals("Error: Without today's row only the range can have changed",
+                ForecastFanOut.CHANGE_RANGE, ForecastFanOut.getChanges(null, null, true));
+    }
+
+    public void testTodayChanged() {
+        ContentValues today = createToday();
+        today.put(WeatherEntry.COLUMN_WEATHER_ID, 500);
+        assertEquals(ForecastFanOut.CHANGE_TODAY_CONDITION,
+                ForecastFanOut.getChanges(createToday(), today, false));
+
+        today = createToday();
+        today.put(WeatherEntry.COLUMN_MAX_TEMP, 21.5);
+        assertEquals(ForecastFanOut.CHANGE_TODAY_TEMPS | ForecastFanOut.CHANGE_RANGE,
+                ForecastFanOut.getChanges(createToday(), today, true));
+    }
+
+    public void testNewDayChangesEverythingAboutToday() {
+        int allOfToday = ForecastFanOut.CHANGE_TODAY_CONDITION | ForecastFanOut.CHANGE_TODAY_TEMPS;
+        ContentValues today = createToday();
+        today.put(WeatherEntry.COLUMN_DATE, TEST_DATE + 24 * 60 * 60 * 1000);
+        assertEquals(allOfToday, ForecastFanOut.getChanges(createToday(), today, false));
+        assertEquals("Error: The first fan-out should tell everyone about today",
+                allOfToday, ForecastFanOut.getChanges(null, createToday(), false));
+    }
+
+    private static ContentValues createToday() {
+        ContentValues today = new ContentValues();
+        today.put(WeatherEntry.COLUMN_LOC_KEY, 1L);
+        today.put(WeatherEntry.COLUMN_DATE, TEST_DATE);
+        today.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+        today.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0);
+        today.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0);
+        return today;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+    Checks when the payload cache serves an entry: only within TTL_MILLIS and on the day it was
+    stored, and only until less recently used entries push it out of MAX_CACHE_BYTES.
+ */
+public class TestForecastPayloadCache extends AndroidTestCase {
+
+    // Incompressible, so gzip can't squeeze three of these under MAX_CACHE_BYTES.
+    private static final int PAYLOAD_BYTES = (int) (ForecastPayloadCache.MAX_CACHE_BYTES * 2 / 5);
+    // Past the coarsest file system timestamp, so eviction can tell the entries apart.
+    private static final long TIMESTAMP_STEP_MILLIS = 1100;
+
+    private ForecastPayloadCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearCache();
+        mCache = new ForecastPayloadCache(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearCache();
+        super.tearDown();
+    }
+
+    public void testServesWhatWasStored() throws IOException {
+        byte[] payload = createPayload(1);
+        put("q94043", payload);
+        assertTrue("Error: the stored payload should come back unchanged",
+                Arrays.equals(payload, read("q94043")));
+        assertNull("Error: a key that was never stored should miss", mCache.open("q10001"));
+        assertEquals(1, mCache.getHits());
+        assertEquals(1, mCache.getMisses());
+    }
+
+    public void testExpiresAfterTtl() {
+        long noon = getLocalTime(12, 0);
+        assertTrue(ForecastPayloadCache.isServable(noon, noon));
+        assertTrue(ForecastPayloadCache.isServable(
+                noon - ForecastPayloadCache.TTL_MILLIS + 1, noon));
+        assertFalse("Error: an entry should expire after TTL_MILLIS",
+                ForecastPayloadCache.isServable(noon - ForecastPayloadCache.TTL_MILLIS, noon));
+        assertFalse("Error: an entry stored in the future should not be served",
+                ForecastPayloadCache.isServable(noon + 1, noon));
+    }
+
+    public void testExpiresAtMidnight() {
+        long midnight = getLocalTime(0, 0);
+        long justAfter = midnight + 60 * 1000;
+        assertTrue(ForecastPayloadCache.isServable(midnight, justAfter));
+        assertFalse("Error: yesterday's entry should not be served, however fresh",
+                ForecastPayloadCache.isServable(midnight - 60 * 1000, justAfter));
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        put("qa", createPayload(1));
+        SystemClock.sleep(TIMESTAMP_STEP_MILLIS);
+        put("qb", createPayload(2));
+        SystemClock.sleep(TIMESTAMP_STEP_MILLIS);
+        // Reading a makes b the least recently used.
+        read("qa");
+        SystemClock.sleep(TIMESTAMP_STEP_MILLIS);
+        put("qc", createPayload(3));
+
+        assertTrue("Error: the cache should fit in MAX_CACHE_BYTES",
+                mCache.getSize() <= ForecastPayloadCache.MAX_CACHE_BYTES);
+        assertNull("Error: the least recently used entry should have been evicted",
+                mCache.open("qb"));
+        assertNotNull(read("qa"));
+        assertNotNull(read("qc"));
+    }
+
+    private void put(String key, byte[] payload) throws IOException {
+        ForecastPayloadCache.Editor editor = mCache.edit(key);
+        InputStream in = editor.tee(new ByteArrayInputStream(payload));
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // keep reading
+            }
+            editor.commit();
+        } finally {
+            editor.abort();
+            in.close();
+        }
+    }
+
+    private byte[] read(String key) throws IOException {
+        InputStream in = mCache.open(key);
+        if (in == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] createPayload(long seed) {
+        byte[] payload = new byte[PAYLOAD_BYTES];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+
+    // Today at the given local time, in milliseconds since the epoch.
+    private static long getLocalTime(int hour, int minute) {
+        Time time = new Time();
+        time.setToNow();
+        time.set(0, minute, hour, time.monthDay, time.month, time.year);
+        return time.toMillis(true);
+    }
+
+    private void clearCache() {
+        File dir = new File(mContext.getCacheDir(), ForecastPayloadCache.CACHE_DIR_NAME);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/*
+    Checks that a malformed day is quarantined with a reason while the days around it are kept
+    in place.
+ */
+public class TestOwmForecastParser extends AndroidTestCase {
+
+    private static final String CITY =
+            "\"city\":{\"name\":\"Mountain View\",\"coord\":{\"lat\":37.4,\"lon\":-122.1}}";
+
+    private static String day(String humidity, String max) {
+        return "{\"pressure\":1012.5,\"humidity\":" + humidity + ",\"speed\":3.1,\"deg\":270,"
+                + "\"temp\":{\"max\":" + max + ",\"min\":12.0},"
+                + "\"weather\":[{\"id\":800,\"main\":\"Clear\"}]}";
+    }
+
+    private static InputStream payload(String... days) {
+        StringBuilder json = new StringBuilder("{\"cod\":\"200\"," + CITY + ",\"list\":[");
+        for (int i = 0; i < days.length; i++) {
+            json.append(i == 0 ? "" : ",").append(days[i]);
+        }
+        return new ByteArrayInputStream(json.append("]}").toString().getBytes());
+    }
+
+    public void testMalformedDaysAreQuarantined() throws Exception {
+        OwmForecastParser.Forecast forecast = OwmForecastParser.parse(payload(
+                day("60", "20.5"),
+                day("\"damp\"", "21.0"),
+                "\"not a day\"",
+                day("140", "22.0"),
+                day("55", "8.0")));
+
+        assertEquals(5, forecast.days.size());
+        assertEquals(1, forecast.getValidDayCount());
+        assertEquals(4, forecast.quarantined.size());
+
+        // The good day keeps its position, so it's still dated correctly.
+        assertNotNull(forecast.days.get(0));
+        assertEquals(60, (int) forecast.days.get(0).getAsInteger(WeatherEntry.COLUMN_HUMIDITY));
+        for (int i = 1; i < 5; i++) {
+            assertNull("Day " + i + " should be quarantined", forecast.days.get(i));
+        }
+
+        assertQuarantined(forecast.quarantined.get(0), 1, OwmForecastParser.FIELD_HUMIDITY,
+                OwmForecastParser.REASON_WRONG_TYPE);
+        assertQuarantined(forecast.quarantined.get(1), 2, OwmForecastParser.FIELD_DAY,
+                OwmForecastParser.REASON_WRONG_TYPE);
+        assertQuarantined(forecast.quarantined.get(2), 3, OwmForecastParser.FIELD_HUMIDITY,
+                OwmForecastParser.REASON_OUT_OF_RANGE);
+        // A low above the high.
+        assertQuarantined(forecast.quarantined.get(3), 4, OwmForecastParser.FIELD_LOW,
+                OwmForecastParser.REASON_OUT_OF_RANGE);
+
+        assertEquals(2, (int) forecast.invalidFields.get(OwmForecastParser.FIELD_HUMIDITY));
+        assertEquals(1, (int) forecast.invalidFields.get(OwmForecastParser.FIELD_DAY));
+        assertEquals(1, (int) forecast.invalidFields.get(OwmForecastParser.FIELD_LOW));
+    }
+
+    public void testMissingFieldIsQuarantined() throws Exception {
+        String noWeather = "{\"pressure\":1012.5,\"humidity\":60,\"speed\":3.1,\"deg\":270,"
+                + "\"temp\":{\"max\":20.5,\"min\":12.0}}";
+        OwmForecastParser.Forecast forecast =
+                OwmForecastParser.parse(payload(noWeather, day("60", "20.5")));
+
+        assertEquals(1, forecast.getValidDayCount());
+        assertNull(forecast.days.get(0));
+        assertNotNull(forecast.days.get(1));
+        assertQuarantined(forecast.quarantined.get(0), 0, OwmForecastParser.FIELD_DESCRIPTION,
+                OwmForecastParser.REASON_MISSING_FIELD);
+        assertEquals(1, (int) forecast.invalidFields.get(OwmForecastParser.FIELD_WEATHER_ID));
+    }
+
+    private static void assertQuarantined(OwmForecastParser.QuarantinedDay day, int index,
+                                          String field, int reason) {
+        assertEquals(index, day.index);
+        assertEquals(field, day.field);
+        assertEquals(reason, day.reason);
+    }
+}
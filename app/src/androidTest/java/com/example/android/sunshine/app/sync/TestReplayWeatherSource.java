@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+/*
+    Fetches from a ReplayWeatherSource through the real ForecastFetcher, so the network half of
+    the sync is exercised without OpenWeatherMap.  There's no payload cache, and the locations
+    are made up, so nothing here is stored or served conditionally.
+ */
+public class TestReplayWeatherSource extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "replay-test-location";
+
+    private ReplayWeatherSource mSource;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mSource != null) {
+            mSource.close();
+        }
+        super.tearDown();
+    }
+
+    public void testFetchesMadeUpForecast() throws IOException {
+        mSource = new ReplayWeatherSource(ReplayWeatherSource.PROFILE_LOCAL);
+        ForecastFetcher.Result result =
+                fetch(new ForecastFetcher.Request(TEST_LOCATION, null, null));
+
+        assertEquals(ForecastFetcher.RESULT_OK, result.status);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                ForecastTransformer.getLocationStatusForResult(result));
+        assertEquals(TEST_LOCATION, result.forecast.cityName);
+        assertEquals(ForecastFetcher.FORECAST_DAYS, result.forecast.days.size());
+        assertEquals(1, mSource.getRequestCount());
+    }
+
+    public void testServesRecording() throws IOException {
+        mSource = new ReplayWeatherSource(ReplayWeatherSource.PROFILE_LOCAL);
+        ForecastFetcher.Request request = new ForecastFetcher.Request(TEST_LOCATION, "1.5", "2.5");
+        mSource.addRecording(request, "{\"cod\":\"404\",\"message\":\"city not found\"}"
+                .getBytes("UTF-8"));
+        ForecastFetcher.Result result = fetch(request);
+
+        assertEquals(ForecastFetcher.RESULT_OK, result.status);
+        assertEquals("Error: The recorded error should be reported as an invalid location",
+                SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                ForecastTransformer.getLocationStatusForResult(result));
+    }
+
+    public void testFailureProfile() throws IOException {
+        mSource = new ReplayWeatherSource(new ReplayWeatherSource.Profile(0, 0, 1f, 503, 14, 0));
+        ForecastFetcher.Result result =
+                fetch(new ForecastFetcher.Request(TEST_LOCATION, null, null));
+
+        assertEquals(ForecastFetcher.RESULT_SERVER_DOWN, result.status);
+        assertEquals(1, mSource.getFailureCount());
+    }
+
+    public void testPaddingIsSkipped() throws IOException {
+        mSource = new ReplayWeatherSource(ReplayWeatherSource.PROFILE_LARGE_PAYLOAD);
+        ForecastFetcher.Result result =
+                fetch(new ForecastFetcher.Request(TEST_LOCATION, null, null));
+
+        assertEquals(ForecastFetcher.RESULT_OK, result.status);
+        assertEquals(ForecastFetcher.FORECAST_DAYS, result.forecast.days.size());
+        assertTrue("Error: The padding never went over the wire",
+                result.bytesRead > ReplayWeatherSource.PROFILE_LARGE_PAYLOAD.paddingBytes);
+    }
+
+    // A server slower than the deadline should time out, and say so rather than "server down".
+    public void testDeadlineTimesOut() throws IOException {
+        mSource = new ReplayWeatherSource(
+                new ReplayWeatherSource.Profile(3000, 0, 0f, 503, 14, 0));
+        ForecastFetcher.Result result =
+                fetch(new ForecastFetcher.Request(TEST_LOCATION, null, null),
+                        new SyncDeadline(500), ForecastFetcher.FORECAST_DAYS);
+
+        assertEquals(ForecastFetcher.RESULT_TIMED_OUT, result.status);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_TIMEOUT,
+                ForecastTransformer.getLocationStatusForResult(result));
+    }
+
+    public void testCancelledFetch() throws IOException {
+        mSource = new ReplayWeatherSource(ReplayWeatherSource.PROFILE_LOCAL);
+        SyncDeadline deadline = new SyncDeadline(SyncDeadline.SYNC_BUDGET_MILLIS);
+        deadline.cancel();
+        ForecastFetcher.Result result =
+                fetch(new ForecastFetcher.Request(TEST_LOCATION, null, null),
+                        deadline.forStage(SyncDeadline.FETCH_BUDGET_MILLIS),
+                        ForecastFetcher.FORECAST_DAYS);
+
+        assertEquals("Error: A stage deadline should share its sync's cancellation",
+                ForecastFetcher.RESULT_CANCELLED, result.status);
+        assertEquals(0, mSource.getRequestCount());
+    }
+
+    // On a metered network only the first week is worth paying for.
+    public void testMeteredPolicyAsksForFewerDays() throws IOException {
+        mSource = new ReplayWeatherSource(ReplayWeatherSource.PROFILE_LOCAL);
+        NetworkPolicy policy = new NetworkPolicy(NetworkPolicy.NETWORK_MOBILE, true, false);
+        ForecastFetcher.Result result =
+                fetch(new ForecastFetcher.Request(TEST_LOCATION, null, null),
+                        SyncDeadline.none(), policy.getForecastDays());
+
+        assertEquals(ForecastFetcher.RESULT_OK, result.status);
+        assertEquals(NetworkPolicy.METERED_FORECAST_DAYS, result.forecast.days.size());
+        assertFalse(policy.shouldRefreshSavedLocations());
+        assertFalse(policy.shouldPrefetchArt());
+    }
+
+    private ForecastFetcher.Result fetch(ForecastFetcher.Request request) {
+        return new ForecastFetcher(mContext, mSource, null).fetch(request);
+    }
+
+    private ForecastFetcher.Result fetch(ForecastFetcher.Request request, SyncDeadline deadline,
+                                         int forecastDays) {
+        return new ForecastFetcher(mContext, mSource, null, deadline, forecastDays).fetch(request);
+    }
+}
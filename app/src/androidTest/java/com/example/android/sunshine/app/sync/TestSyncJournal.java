@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Checks that a location fetched by a sync that never got to persist it can be picked up by
+    the next one from the cached payload, and that the journal survives a torn record.
+ */
+public class TestSyncJournal extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "journal-test-location";
+
+    private ReplayWeatherSource mSource;
+    private ForecastFetcher mFetcher;
+    private File mJournalFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournalFile = new File(mContext.getFilesDir(), SyncJournal.FILE_NAME);
+        mJournalFile.delete();
+        mSource = new ReplayWeatherSource(ReplayWeatherSource.PROFILE_LOCAL);
+        mFetcher = new ForecastFetcher(mContext, mSource, new ForecastPayloadCache(mContext));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSource.close();
+        mJournalFile.delete();
+        super.tearDown();
+    }
+
+    public void testResumeFromCachedPayload() {
+        ForecastFetcher.Request request = new ForecastFetcher.Request(TEST_LOCATION, null, null);
+        ForecastFetcher.Result fetched = new SyncJournal(mContext).recording(mFetcher)
+                .process(request);
+        assertEquals(ForecastFetcher.RESULT_OK, fetched.status);
+
+        // A new journal, as the next sync after the process died would have.
+        SyncJournal journal = new SyncJournal(mContext);
+        List<ForecastFetcher.Request> pending = journal.getPendingRequests();
+        assertEquals("Error: The fetched location should be pending", 1, pending.size());
+
+        ForecastFetcher.Result resumed = journal.replaying(mFetcher).process(pending.get(0));
+        assertEquals(ForecastFetcher.RESULT_OK, resumed.status);
+        assertFalse("Error: A resumed payload should be stored like a fresh one",
+                resumed.fromCache);
+        assertEquals(fetched.validators.etag, resumed.validators.etag);
+        assertEquals(fetched.payloadHash, resumed.payloadHash);
+        assertEquals("Error: Resuming should not go back to the server",
+                1, mSource.getRequestCount());
+
+        ForecastTransformer.Transformed transformed = new ForecastTransformer.Transformed(resumed,
+                SunshineSyncAdapter.LOCATION_STATUS_OK, Collections.<ContentValues>emptyList(),
+                true);
+        journal.committing(new NoOpPersister())
+                .process(Collections.singletonList(transformed));
+        assertTrue(new SyncJournal(mContext).getPendingRequests().isEmpty());
+        assertFalse("Error: A journal with nothing pending should be compacted away",
+                mJournalFile.exists());
+    }
+
+    public void testTornRecordIsDropped() throws IOException {
+        ForecastFetcher.Request request = new ForecastFetcher.Request(TEST_LOCATION, null, null);
+        new SyncJournal(mContext).recording(mFetcher).process(request);
+
+        // Half a record, as a crash in the middle of an append would leave.
+        FileOutputStream out = new FileOutputStream(mJournalFile, true);
+        out.write(new byte[]{0, 0, 0, 42, 1, 2, 3});
+        out.close();
+        long tornLength = mJournalFile.length();
+
+        assertEquals("Error: The record before the torn one should survive",
+                1, new SyncJournal(mContext).getPendingRequests().size());
+        assertTrue("Error: The torn record should have been compacted away",
+                mJournalFile.length() < tornLength);
+    }
+
+    private static class NoOpPersister implements
+            SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted> {
+        @Override
+        public String getName() {
+            return ForecastPersister.STAGE_NAME;
+        }
+
+        @Override
+        public ForecastPersister.Persisted process(
+                List<ForecastTransformer.Transformed> forecasts) {
+            return new ForecastPersister.Persisted();
+        }
+    }
+}
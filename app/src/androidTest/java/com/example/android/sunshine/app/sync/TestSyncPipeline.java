@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Runs the SyncPipeline with stub stages, so it can be checked without a network, and mostly
+    without a database.  The stages are package private, which is why this test lives in the
+    sync package.
+ */
+public class TestSyncPipeline extends AndroidTestCase {
+
+    private static final int LOCATION_COUNT = 5;
+
+    /*
+        Every request should make it through fetch and transform, be handed to persist in one
+        batch, and then be fanned out once with the preferred location's first day.
+     */
+    public void testPipelineRunsEveryStage() throws InterruptedException {
+        List<ForecastFetcher.Request> requests = new ArrayList<ForecastFetcher.Request>();
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            requests.add(new ForecastFetcher.Request("location" + i, null, null));
+        }
+        ForecastFetcher.Request preferredRequest = requests.get(2);
+
+        final List<ForecastTransformer.Transformed> persistedForecasts =
+                new ArrayList<ForecastTransformer.Transformed>();
+        final List<ForecastFanOut.Event> events =
+                Collections.synchronizedList(new ArrayList<ForecastFanOut.Event>());
+        final CountDownLatch fanOutDone = new CountDownLatch(1);
+
+        SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> fetch =
+                new SyncStage<ForecastFetcher.Request, ForecastFetcher.Result>() {
+            @Override
+            public String getName() {
+                return ForecastFetcher.STAGE_NAME;
+            }
+
+            @Override
+            public ForecastFetcher.Result process(ForecastFetcher.Request request) {
+                ForecastFetcher.Result result = new ForecastFetcher.Result(request);
+                result.status = ForecastFetcher.RESULT_OK;
+                return result;
+            }
+        };
+
+        SyncStage<ForecastFetcher.Result, ForecastTransformer.Transformed> transform =
+                new SyncStage<ForecastFetcher.Result, ForecastTransformer.Transformed>() {
+            @Override
+            public String getName() {
+                return ForecastTransformer.STAGE_NAME;
+            }
+
+            @Override
+            public ForecastTransformer.Transformed process(ForecastFetcher.Result result) {
+                ContentValues today = new ContentValues();
+                today.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                        result.request.locationSetting);
+                return new ForecastTransformer.Transformed(result,
+                        SunshineSyncAdapter.LOCATION_STATUS_OK,
+                        Collections.singletonList(today), false);
+            }
+        };
+
+        SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted> persist =
+                new SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted>() {
+            @Override
+            public String getName() {
+                return ForecastPersister.STAGE_NAME;
+            }
+
+            @Override
+            public ForecastPersister.Persisted process(
+                    List<ForecastTransformer.Transformed> forecasts) {
+                persistedForecasts.addAll(forecasts);
+                ForecastPersister.Persisted persisted = new ForecastPersister.Persisted();
+                persisted.rows = forecasts.size();
+                persisted.inserted = forecasts.size();
+                return persisted;
+            }
+        };
+
+        SyncStage<ForecastFanOut.Event, ForecastFanOut.Dispatch> fanOut =
+                new SyncStage<ForecastFanOut.Event, ForecastFanOut.Dispatch>() {
+            @Override
+            public String getName() {
+                return ForecastFanOut.STAGE_NAME;
+            }
+
+            @Override
+            public ForecastFanOut.Dispatch process(ForecastFanOut.Event event) {
+                events.add(event);
+                fanOutDone.countDown();
+                return null;
+            }
+        };
+
+        SyncPipeline.Outcome outcome = new SyncPipeline(fetch, transform, persist, fanOut)
+                .run(requests, preferredRequest, null);
+
+        assertEquals("Error: Not every location was transformed",
+                LOCATION_COUNT, outcome.forecasts.size());
+        assertEquals("Error: Not every location was persisted",
+                LOCATION_COUNT, persistedForecasts.size());
+        assertEquals("Error: Wrong status for the preferred location",
+                SunshineSyncAdapter.LOCATION_STATUS_OK, outcome.preferredStatus);
+
+        assertTrue("Error: Fan-out never ran", fanOutDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).rangeChanged);
+        assertEquals("Error: The watch should get the preferred location's forecast",
+                preferredRequest.locationSetting,
+                events.get(0).preferredToday.getAsString(
+                        WeatherContract.WeatherEntry.COLUMN_SHORT_DESC));
+    }
+
+    /*
+        A sync where every fetch comes back 304 stores nothing, but the server did answer, so a
+        daily notification that is due must still be posted.
+     */
+    public void testNotModifiedSyncPostsDueNotification() throws InterruptedException {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String lastNotificationKey = mContext.getString(R.string.pref_last_notification);
+        String enabledKey = mContext.getString(R.string.pref_enable_notifications_key);
+        long savedLastNotification = prefs.getLong(lastNotificationKey, 0);
+        boolean savedEnabled = prefs.getBoolean(enabledKey, true);
+        prefs.edit().putLong(lastNotificationKey, 0).putBoolean(enabledKey, true).commit();
+
+        // Something for the notification to show.
+        String locationSetting = Utility.getPreferredLocation(mContext);
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Bundle extras = new Bundle();
+        extras.putParcelable(WeatherContract.LocationEntry.EXTRA_VALUES, location);
+        long locationId = mContext.getContentResolver().call(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.METHOD_INSERT_OR_GET, null, extras)
+                .getLong(WeatherContract.LocationEntry.EXTRA_LOCATION_ID);
+        ContentValues today = new ContentValues();
+        today.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+        today.put(WeatherContract.WeatherEntry.COLUMN_DATE, System.currentTimeMillis());
+        today.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 1.1);
+        today.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 1.2);
+        today.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1.3);
+        today.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75);
+        today.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 65);
+        today.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+        today.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+        today.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800);
+        mContext.getContentResolver().insert(WeatherContract.WeatherEntry.CONTENT_URI, today);
+
+        try {
+            ForecastFetcher.Request request = new ForecastFetcher.Request(locationSetting, null,
+                    null);
+            SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> fetch =
+                    new SyncStage<ForecastFetcher.Request, ForecastFetcher.Result>() {
+                @Override
+                public String getName() {
+                    return ForecastFetcher.STAGE_NAME;
+                }
+
+                @Override
+                public ForecastFetcher.Result process(ForecastFetcher.Request request) {
+                    ForecastFetcher.Result result = new ForecastFetcher.Result(request);
+                    result.status = ForecastFetcher.RESULT_NOT_MODIFIED;
+                    return result;
+                }
+            };
+            SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted> persist =
+                    new SyncStage<List<ForecastTransformer.Transformed>,
+                            ForecastPersister.Persisted>() {
+                @Override
+                public String getName() {
+                    return ForecastPersister.STAGE_NAME;
+                }
+
+                @Override
+                public ForecastPersister.Persisted process(
+                        List<ForecastTransformer.Transformed> forecasts) {
+                    return new ForecastPersister.Persisted();
+                }
+            };
+
+            final ForecastFanOut.Dispatch[] dispatch = new ForecastFanOut.Dispatch[1];
+            final CountDownLatch fanOutDone = new CountDownLatch(1);
+            SyncPipeline.Outcome outcome = new SyncPipeline(fetch,
+                    new ForecastTransformer(mContext), persist,
+                    new ForecastFanOut(mContext, null))
+                    .run(Collections.singletonList(request), request,
+                            new SyncPipeline.FanOutListener() {
+                                @Override
+                                public void onFanOutFinished(long millis,
+                                                             ForecastFanOut.Dispatch d) {
+                                    dispatch[0] = d;
+                                    fanOutDone.countDown();
+                                }
+                            });
+
+            assertTrue("Error: a 304 sync should still fan out", outcome.fanOutPending);
+            assertTrue("Error: Fan-out never ran", fanOutDone.await(35, TimeUnit.SECONDS));
+            assertNotNull(dispatch[0]);
+            assertEquals("Error: only the due notification should have been found",
+                    ForecastFanOut.CHANGE_NOTIFICATION_DUE, dispatch[0].changes);
+            assertTrue("Error: the notification consumer wasn't told",
+                    dispatch[0].consumerMillis.containsKey(ForecastFanOut.CONSUMER_NOTIFICATION));
+            assertTrue("Error: the notification wasn't posted",
+                    prefs.getLong(lastNotificationKey, 0) > 0);
+        } finally {
+            prefs.edit().putLong(lastNotificationKey, savedLastNotification)
+                    .putBoolean(enabledKey, savedEnabled).commit();
+            mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                    new String[]{Long.toString(locationId)});
+            mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                    WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)});
+        }
+    }
+}
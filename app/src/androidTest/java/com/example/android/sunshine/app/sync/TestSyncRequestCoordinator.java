@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.Utility;
+
+/*
+    Checks what the coordinator does with a request: merges it into a sync already waiting for
+    the coalescing window, skips it when the preferred location is fresh, and schedules it
+    anyway when it's forced.  The scheduled syncs are cancelled before they start.
+ */
+public class TestSyncRequestCoordinator extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearCoordinator();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearCoordinator();
+        super.tearDown();
+    }
+
+    public void testRequestsWithinWindowAreMerged() {
+        assertEquals(SyncRequestCoordinator.REQUEST_SCHEDULED,
+                SyncRequestCoordinator.requestSync(mContext, false));
+        assertEquals("Error: a second request should ride along with the pending sync",
+                SyncRequestCoordinator.REQUEST_MERGED,
+                SyncRequestCoordinator.requestSync(mContext, false));
+        assertEquals("Error: a forced request should ride along with the pending sync too",
+                SyncRequestCoordinator.REQUEST_MERGED,
+                SyncRequestCoordinator.requestSync(mContext, true));
+    }
+
+    public void testFreshLocationIsSkipped() {
+        SyncRequestCoordinator.recordSuccessfulSync(mContext,
+                Utility.getPreferredLocation(mContext));
+        assertEquals(SyncRequestCoordinator.REQUEST_SKIPPED_FRESH,
+                SyncRequestCoordinator.requestSync(mContext, false));
+    }
+
+    public void testForcedRequestIgnoresFreshness() {
+        SyncRequestCoordinator.recordSuccessfulSync(mContext,
+                Utility.getPreferredLocation(mContext));
+        assertEquals("Error: a forced request should be scheduled however fresh the location",
+                SyncRequestCoordinator.REQUEST_SCHEDULED,
+                SyncRequestCoordinator.requestSync(mContext, true));
+    }
+
+    private void clearCoordinator() {
+        SyncRequestCoordinator.cancelPendingSync();
+        mContext.getSharedPreferences(SyncRequestCoordinator.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+/*
+    Walks the retry policy through its states: backoff after a failure, the breaker opening at
+    BREAKER_THRESHOLD failures, and the half open probe closing or reopening it.  Each test uses
+    an endpoint of its own, so the real server's state is left alone.
+ */
+public class TestSyncRetryPolicy extends AndroidTestCase {
+
+    private static final String TEST_ENDPOINT = "test-endpoint";
+
+    private SyncRetryPolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearPolicy();
+        mPolicy = SyncRetryPolicy.forEndpoint(mContext, TEST_ENDPOINT);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearPolicy();
+        super.tearDown();
+    }
+
+    public void testBackoffDoublesUpToTheCap() {
+        assertEquals(SyncRetryPolicy.BASE_BACKOFF_MILLIS, SyncRetryPolicy.getBackoffMillis(1));
+        assertEquals(2 * SyncRetryPolicy.BASE_BACKOFF_MILLIS,
+                SyncRetryPolicy.getBackoffMillis(2));
+        assertEquals(4 * SyncRetryPolicy.BASE_BACKOFF_MILLIS,
+                SyncRetryPolicy.getBackoffMillis(3));
+        assertEquals(SyncRetryPolicy.MAX_BACKOFF_MILLIS, SyncRetryPolicy.getBackoffMillis(20));
+        assertEquals("Error: the backoff shouldn't overflow",
+                SyncRetryPolicy.MAX_BACKOFF_MILLIS, SyncRetryPolicy.getBackoffMillis(100));
+    }
+
+    public void testFailureBacksOff() {
+        assertEquals(0, mPolicy.getRetryDelayMillis(false));
+
+        long before = System.currentTimeMillis();
+        long nextAttempt = mPolicy.recordFailure();
+        // Equal jitter waits between half and all of the backoff.
+        assertTrue(nextAttempt >= before + SyncRetryPolicy.BASE_BACKOFF_MILLIS / 2);
+        assertTrue(nextAttempt <= System.currentTimeMillis() + SyncRetryPolicy.BASE_BACKOFF_MILLIS);
+        assertEquals(SyncRetryPolicy.STATE_CLOSED, mPolicy.getState());
+        assertTrue("Error: a periodic sync should wait", mPolicy.getRetryDelayMillis(false) > 0);
+        assertEquals("Error: a manual sync skips the backoff",
+                0, mPolicy.getRetryDelayMillis(true));
+
+        long secondAttempt = mPolicy.recordFailure();
+        assertTrue("Error: the second failure should wait at least the first's full backoff",
+                secondAttempt >= before + SyncRetryPolicy.BASE_BACKOFF_MILLIS);
+
+        mPolicy.recordSuccess();
+        assertEquals(0, mPolicy.getRetryDelayMillis(false));
+    }
+
+    public void testBreakerOpensAtThreshold() {
+        for (int i = 1; i < SyncRetryPolicy.BREAKER_THRESHOLD; i++) {
+            mPolicy.recordFailure();
+            assertEquals(SyncRetryPolicy.STATE_CLOSED, mPolicy.getState());
+        }
+        mPolicy.recordFailure();
+        assertEquals(SyncRetryPolicy.STATE_OPEN, mPolicy.getState());
+        assertTrue("Error: an open breaker holds back manual syncs too",
+                mPolicy.getRetryDelayMillis(true) > 0);
+    }
+
+    public void testHalfOpenProbeSuccessCloses() {
+        openAndExpire();
+        assertEquals("Error: the probe should be let through",
+                0, mPolicy.getRetryDelayMillis(false));
+        assertEquals(SyncRetryPolicy.STATE_HALF_OPEN, mPolicy.getState());
+        assertTrue("Error: only one probe at a time", mPolicy.getRetryDelayMillis(true) > 0);
+
+        mPolicy.recordSuccess();
+        assertEquals(SyncRetryPolicy.STATE_CLOSED, mPolicy.getState());
+        assertEquals(0, mPolicy.getRetryDelayMillis(false));
+    }
+
+    public void testHalfOpenProbeFailureReopens() {
+        openAndExpire();
+        assertEquals(0, mPolicy.getRetryDelayMillis(false));
+
+        long before = System.currentTimeMillis();
+        long nextAttempt = mPolicy.recordFailure();
+        assertEquals(SyncRetryPolicy.STATE_OPEN, mPolicy.getState());
+        assertTrue(nextAttempt >= before + SyncRetryPolicy.BREAKER_OPEN_MILLIS / 2);
+        assertTrue(mPolicy.getRetryDelayMillis(true) > 0);
+    }
+
+    // Opens the breaker and then acts as if its open period were over.
+    private void openAndExpire() {
+        for (int i = 0; i < SyncRetryPolicy.BREAKER_THRESHOLD; i++) {
+            mPolicy.recordFailure();
+        }
+        assertEquals(SyncRetryPolicy.STATE_OPEN, mPolicy.getState());
+        getPreferences().edit()
+                .putLong(SyncRetryPolicy.key(TEST_ENDPOINT, SyncRetryPolicy.KEY_NEXT_ATTEMPT),
+                        System.currentTimeMillis() - 1)
+                .commit();
+    }
+
+    private void clearPolicy() {
+        SharedPreferences prefs = getPreferences();
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(TEST_ENDPOINT + "|")) {
+                editor.remove(key);
+            }
+        }
+        editor.commit();
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(SyncRetryPolicy.PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
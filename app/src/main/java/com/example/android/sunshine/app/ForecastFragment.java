@@ -47,6 +47,7 @@ import android.widget.TextView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncRetryPolicy;
 
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
@@ -411,11 +412,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                 @SunshineSyncAdapter.LocationStatus int location = Utility.getLocationStatus(getActivity());
                 switch (location) {
                     case SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN:
-                        message = R.string.empty_forecast_list_server_down;
+                        message = SyncRetryPolicy.getState(getActivity())
+                                == SyncRetryPolicy.STATE_CLOSED
+                                ? R.string.empty_forecast_list_server_down
+                                : R.string.empty_forecast_list_server_down_paused;
                         break;
                     case SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID:
                         message = R.string.empty_forecast_list_server_error;
                         break;
+                    case SunshineSyncAdapter.LOCATION_STATUS_TIMEOUT:
+                        message = R.string.empty_forecast_list_timeout;
+                        break;
                     case SunshineSyncAdapter.LOCATION_STATUS_INVALID:
                         message = R.string.empty_forecast_list_invalid_location;
                         break;
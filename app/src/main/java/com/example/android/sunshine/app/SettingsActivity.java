@@ -30,7 +30,9 @@ import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.LargeIconCache;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncRequestCoordinator;
 import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.ui.PlacePicker;
 import com.google.android.gms.maps.model.LatLng;
@@ -167,7 +169,7 @@ public class SettingsActivity extends PreferenceActivity
             }
 
             Utility.resetLocationStatus(this);
-            SunshineSyncAdapter.syncImmediately(this);
+            SyncRequestCoordinator.requestSync(this, true);
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
             // units have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
@@ -178,6 +180,8 @@ public class SettingsActivity extends PreferenceActivity
         } else if ( key.equals(getString(R.string.pref_art_pack_key)) ) {
             // art pack have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            // and get the notification icons for the new pack ready before they're needed
+            LargeIconCache.getInstance(this).prewarm();
         }
     }
 
@@ -235,7 +239,7 @@ public class SettingsActivity extends PreferenceActivity
                 }
 
                 Utility.resetLocationStatus(this);
-                SunshineSyncAdapter.syncImmediately(this);
+                SyncRequestCoordinator.requestSync(this, true);
             }
         } else {
             super.onActivityResult(requestCode, resultCode, data);
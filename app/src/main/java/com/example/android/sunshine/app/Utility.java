@@ -272,6 +272,16 @@ public class Utility {
                 sunshineArtPack).equals(sunshineArtPack);
     }
 
+    /**
+     * @param context Context to use for retrieving the preference
+     * @return the art pack in use, as the URL format its artwork is found at
+     */
+    public static String getArtPack(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getString(context.getString(R.string.pref_art_pack_key),
+                context.getString(R.string.pref_art_pack_sunshine));
+    }
+
     /**
      * Helper method to provide the art urls according to the weather condition id returned
      * by the OpenWeatherMap call.
@@ -577,6 +587,20 @@ public class Utility {
                 activeNetwork.isConnectedOrConnecting();
     }
 
+    /**
+     * Returns true if the active network is one the user may be paying for by the byte, such as
+     * mobile data or a tethered hotspot.  Also true when there's no network at all.
+     *
+     * @param c Context used to get the ConnectivityManager
+     * @return true if the network is metered
+     */
+    static public boolean isNetworkMetered(Context c) {
+        ConnectivityManager cm =
+                (ConnectivityManager)c.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        return cm.isActiveNetworkMetered();
+    }
+
     /**
      *
      * @param c Context used to get the SharedPreferences
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The weather days a write touched, so the provider can notify just the URIs they live under
+ * instead of weather/, which wakes every weather observer there is.
+ *
+ * A location with a single changed day gets weather/[location]/[date], which reaches that day's
+ * detail screen and, through descendant matching, the location's list.  A location with more
+ * than one gets weather/[location] once, rather than waking its list for every day.  Anything
+ * that can't be pinned down falls back to weather/.
+ */
+class WeatherChanges {
+
+    // How many notifyChange calls went out for weather/, weather/[location] and
+    // weather/[location]/[date], since the process started.  Each call may wake any number of
+    // observers, or none, so these measure how narrowly writes are scoped, not wakeups; the
+    // tests read them to check that a write didn't fall back to weather/.
+    private static final AtomicLong sRootNotifyCalls = new AtomicLong();
+    private static final AtomicLong sLocationNotifyCalls = new AtomicLong();
+    private static final AtomicLong sDayNotifyCalls = new AtomicLong();
+
+    // location_id -> the normalized dates written for it
+    private final Map<Long, Set<Long>> mDatesByLocation = new HashMap<Long, Set<Long>>();
+    private boolean mEverything;
+
+    /**
+     * Records a weather row by its location key and date.  A row without them could be anywhere.
+     */
+    void add(ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            mEverything = true;
+        } else {
+            add(locationId, date);
+        }
+    }
+
+    void add(long locationId, long date) {
+        Set<Long> dates = mDatesByLocation.get(locationId);
+        if (dates == null) {
+            dates = new HashSet<Long>();
+            mDatesByLocation.put(locationId, dates);
+        }
+        dates.add(WeatherContract.normalizeDate(date));
+    }
+
+    /**
+     * Records every row a selection on the weather table matches.  Run it in the same transaction
+     * as the write, before it.
+     */
+    void addMatching(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(true, WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                add(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * For writes that may have touched any row, e.g. an update that moves rows between days.
+     */
+    void addEverything() {
+        mEverything = true;
+    }
+
+    boolean isEmpty() {
+        return !mEverything && mDatesByLocation.isEmpty();
+    }
+
+    /**
+     * Notifies the URIs the recorded rows live under.  Call it once the write is committed.
+     */
+    void notifyObservers(ContentResolver resolver, SQLiteDatabase db) {
+        if (isEmpty()) {
+            return;
+        }
+        Map<Long, String> settings = mEverything ? null : loadLocationSettings(db);
+        if (settings == null || settings.size() < mDatesByLocation.size()) {
+            // Weather for a location we can't name; everybody hears about it.
+            sRootNotifyCalls.incrementAndGet();
+            resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            return;
+        }
+        for (Map.Entry<Long, Set<Long>> location : mDatesByLocation.entrySet()) {
+            String setting = settings.get(location.getKey());
+            Set<Long> dates = location.getValue();
+            Uri uri;
+            if (dates.size() == 1) {
+                sDayNotifyCalls.incrementAndGet();
+                uri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(setting,
+                        dates.iterator().next());
+            } else {
+                sLocationNotifyCalls.incrementAndGet();
+                uri = WeatherContract.WeatherEntry.buildWeatherLocation(setting);
+            }
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    private Map<Long, String> loadLocationSettings(SQLiteDatabase db) {
+        Map<Long, String> settings = new HashMap<Long, String>();
+        String[] projection = {WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING};
+        for (Long locationId : mDatesByLocation.keySet()) {
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME, projection,
+                    WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    settings.put(locationId, cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return settings;
+    }
+
+    static long getRootNotifyCalls() {
+        return sRootNotifyCalls.get();
+    }
+
+    static long getLocationNotifyCalls() {
+        return sLocationNotifyCalls.get();
+    }
+
+    static long getDayNotifyCalls() {
+        return sDayNotifyCalls.get();
+    }
+}
@@ -43,6 +43,8 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+    public static final String PATH_HOURLY = "hourly";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,6 +83,14 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Provider method (see ContentResolver.call) that returns the _id of the location whose
+        // setting is in the ContentValues under EXTRA_VALUES.  A new setting is inserted, and an
+        // existing one only has its city name and coordinates written if they changed, all in
+        // one transaction.  The id comes back in the result Bundle under EXTRA_LOCATION_ID.
+        public static final String METHOD_INSERT_OR_GET = "insertOrGetLocation";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_LOCATION_ID = "locationId";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -126,6 +136,36 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Provider method (see ContentResolver.call) that writes a set of weather rows, only
+        // touching the ones whose values differ from what is already stored.  The rows go in
+        // EXTRA_VALUES as a ContentValues array; the counts come back in the result Bundle.
+        public static final String METHOD_UPSERT = "upsertWeather";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_INSERTED = "inserted";
+        public static final String EXTRA_UPDATED = "updated";
+        public static final String EXTRA_UNCHANGED = "unchanged";
+        // How many of the updated rows changed in a way users notice: a different condition
+        // or a high/low temperature that moved by at least a degree.
+        public static final String EXTRA_SIGNIFICANT_CHANGES = "significantChanges";
+
+        // Provider method (see ContentResolver.call) that applies a forecast delta: the days in
+        // EXTRA_VALUES carry a date and only the columns that changed, for the location whose
+        // setting is in EXTRA_LOCATION_SETTING.  Only days that are already stored are written,
+        // in one transaction; the rest are counted in EXTRA_SKIPPED.  The other counts come back
+        // as for METHOD_UPSERT.
+        public static final String METHOD_APPLY_DELTA = "applyWeatherDelta";
+        public static final String EXTRA_LOCATION_SETTING = "locationSetting";
+        public static final String EXTRA_SKIPPED = "skipped";
+
+        // Provider method (see ContentResolver.call) that stores a sync's forecast: the rows in
+        // EXTRA_VALUES are upserted as for METHOD_UPSERT, each of their locations loses the days
+        // after the last one it was sent, and every row dated on or before EXTRA_TRIM_DATE (a
+        // long) is deleted, all in one transaction with one notification.  EXTRA_VALUES may be
+        // empty, to only trim.  The counts come back as for METHOD_UPSERT, plus EXTRA_DELETED.
+        public static final String METHOD_REPLACE_FORECAST = "replaceForecast";
+        public static final String EXTRA_TRIM_DATE = "trimDate";
+        public static final String EXTRA_DELETED = "deleted";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +205,151 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the hourly forecast table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // The forecast comes in 3 hour steps.
+        public static final long STEP_MILLIS = 3 * 60 * 60 * 1000;
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the step, stored as long in milliseconds since the epoch.  Unlike the daily
+        // dates this is not normalized: it's the exact time the server gave us.
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Short description of the weather, as provided by API, e.g "Clear"
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+        // Temperature for the step (stored as a float)
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity is stored as a float representing percentage
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Pressure is stored as a float in hPa
+        public static final String COLUMN_PRESSURE = "pressure";
+        // Windspeed is stored as a float
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
+        public static final String COLUMN_DEGREES = "degrees";
+
+        // Query parameters bounding the window of a location's hourly forecast.  The start is
+        // inclusive and the end exclusive.
+        public static final String PARAM_START = "start";
+        public static final String PARAM_END = "end";
+
+        // ContentResolver.call() method that stores the steps in EXTRA_VALUES (a ContentValues
+        // array) in one transaction, as bulkInsert does, but without notifying observers, so an
+        // ingest written in batches can tell them once when it's done.  The count comes back in
+        // the result Bundle under EXTRA_INSERTED.
+        public static final String METHOD_INSERT_QUIETLY = "insertHourlyQuietly";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_INSERTED = "inserted";
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @return the URI of a location's forecast steps from startTime up to, not including,
+         * endTime
+         */
+        public static Uri buildHourlyLocationWithWindow(
+                String locationSetting, long startTime, long endTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_START, Long.toString(startTime))
+                    .appendQueryParameter(PARAM_END, Long.toString(endTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            String startString = uri.getQueryParameter(PARAM_START);
+            if (null != startString && startString.length() > 0)
+                return Long.parseLong(startString);
+            else
+                return 0;
+        }
+
+        public static long getEndTimeFromUri(Uri uri) {
+            String endString = uri.getQueryParameter(PARAM_END);
+            if (null != endString && endString.length() > 0)
+                return Long.parseLong(endString);
+            else
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync metrics table */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_METRICS;
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // The table is a ring buffer: only this many of the most recent syncs are kept.
+        public static final int MAX_ROWS = 100;
+
+        // When the sync started, stored as long in milliseconds since the epoch
+        public static final String COLUMN_START_TIME = "start_time";
+        // How long the sync took, not counting fan-out, in milliseconds
+        public static final String COLUMN_DURATION = "duration";
+        // How many locations were fetched
+        public static final String COLUMN_LOCATIONS = "locations";
+        // The network the sync ran on, one of the NetworkPolicy.NETWORK_* values
+        public static final String COLUMN_NETWORK_TYPE = "network_type";
+
+        // Network timings in milliseconds, summed over every location.  Time to first byte is
+        // measured from sending the request to getting the response headers back.
+        public static final String COLUMN_CONNECT_TIME = "connect_time";
+        public static final String COLUMN_TTFB = "ttfb";
+        // Bytes of response body read, summed over every location
+        public static final String COLUMN_BYTES_READ = "bytes_read";
+        // Time spent reading and parsing the response body, in milliseconds, summed over every
+        // location.  The parser reads straight from the network, so the two can't be split.
+        public static final String COLUMN_PARSE_TIME = "parse_time";
+
+        // What the sync did to the weather table
+        public static final String COLUMN_ROWS_INSERTED = "rows_inserted";
+        public static final String COLUMN_ROWS_UPDATED = "rows_updated";
+        public static final String COLUMN_ROWS_DELETED = "rows_deleted";
+
+        // How long telling the widgets, watch face, Muzei and notification took, in
+        // milliseconds; -1 if there was nothing to tell them or a newer sync superseded it.
+        public static final String COLUMN_FAN_OUT_TIME = "fan_out_time";
+        // How long each consumer took, in milliseconds; -1 if nothing it shows changed (or it
+        // didn't finish in time).  They run at once, so these overlap.
+        public static final String COLUMN_WATCH_TIME = "watch_time";
+        public static final String COLUMN_WIDGETS_TIME = "widgets_time";
+        public static final String COLUMN_MUZEI_TIME = "muzei_time";
+        public static final String COLUMN_NOTIFICATION_TIME = "notification_time";
+
+        // Payload cache lookups that found something to serve, and ones that didn't
+        public static final String COLUMN_CACHE_HITS = "cache_hits";
+        public static final String COLUMN_CACHE_MISSES = "cache_misses";
+        // How much of the cache directory the payload cache used after the sync, in bytes
+        public static final String COLUMN_CACHE_BYTES = "cache_bytes";
+
+        // Days fresh off the network that passed validation, and ones that were quarantined,
+        // summed over every location.  Forecasts served from the payload cache aren't counted.
+        public static final String COLUMN_DAYS_ACCEPTED = "days_accepted";
+        public static final String COLUMN_DAYS_QUARANTINED = "days_quarantined";
+
+        // The location status the sync ended with for the preferred location, one of the
+        // SunshineSyncAdapter.LOCATION_STATUS_* values
+        public static final String COLUMN_OUTCOME = "outcome";
+    }
 }
@@ -16,24 +16,134 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Manages a local database for weather data.
+ *
+ * The database uses write-ahead logging.  A sync's writes go into the log while readers keep
+ * reading the last committed state on connections of their own from the platform's pool, so the
+ * forecast list, the widgets and Muzei don't queue up behind a sync's transaction.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 9;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Serves the window queries on the hourly table and keeps one row per step per location.
+    static final String HOURLY_LOCATION_TIMESTAMP_INDEX = "hourly_location_timestamp";
+
+    // Holds every column the forecast list, the widgets and Muzei read from the weather table, so
+    // their queries are answered from the index alone, without touching the table.
+    static final String WEATHER_LOCATION_FORECAST_INDEX = "weather_location_forecast";
+
+    /**
+     * When the write-ahead log is copied back into the database.  SQLite checkpoints on its own
+     * when a commit takes the log past its page limit, but only passively: it gives up on the
+     * pages a reader still needs, so with readers always about the log can keep growing, and
+     * every read gets slower as it has more log to look through.  On top of that, a write that
+     * leaves the log over maxWalBytes checkpoints in the policy's mode.
+     */
+    static class CheckpointPolicy {
+        // Copies what it can without waiting for anyone.
+        static final String MODE_PASSIVE = "PASSIVE";
+        // Waits for readers, then copies everything.
+        static final String MODE_FULL = "FULL";
+        // As FULL, and then waits until the next write can start the log from the beginning.
+        static final String MODE_RESTART = "RESTART";
+
+        // Leaves checkpoints to SQLite.
+        static final CheckpointPolicy AUTOMATIC =
+                new CheckpointPolicy(Long.MAX_VALUE, MODE_PASSIVE);
+        // A sync writes well under this, so it comes round every few syncs, and the wait for
+        // readers falls on the sync rather than the UI.
+        static final CheckpointPolicy DEFAULT =
+                new CheckpointPolicy(1024 * 1024, MODE_RESTART);
+
+        final long maxWalBytes;
+        final String mode;
+
+        CheckpointPolicy(long maxWalBytes, String mode) {
+            this.maxWalBytes = maxWalBytes;
+            this.mode = mode;
+        }
+    }
+
+    private final CheckpointPolicy mCheckpointPolicy;
+    private final AtomicInteger mCheckpoints = new AtomicInteger();
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, true, CheckpointPolicy.DEFAULT);
+    }
+
+    /**
+     * @param name the database file, so benchmarks can keep out of the real one
+     * @param writeAheadLogging false for the rollback journal, where readers wait for writers
+     */
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging,
+                    CheckpointPolicy checkpointPolicy) {
+        super(context, name, null, DATABASE_VERSION);
+        mCheckpointPolicy = checkpointPolicy;
+        setWriteAheadLoggingEnabled(writeAheadLogging);
+    }
+
+    /**
+     * Called by the provider once a write is committed, on the writer's thread.  Checkpoints if
+     * the policy says the log has grown too big.
+     */
+    void onWriteFinished(SQLiteDatabase db) {
+        if (!db.isWriteAheadLoggingEnabled() || db.inTransaction()) {
+            return;
+        }
+        if (new File(db.getPath() + "-wal").length() > mCheckpointPolicy.maxWalBytes) {
+            checkpoint(db, mCheckpointPolicy.mode);
+        }
+    }
+
+    /**
+     * Copies the write-ahead log back into the database.
+     *
+     * @param mode one of the CheckpointPolicy MODE_ constants
+     * @return true if the whole log was copied back
+     */
+    boolean checkpoint(SQLiteDatabase db, String mode) {
+        mCheckpoints.incrementAndGet();
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+        try {
+            // One row: whether it was blocked, the pages in the log, the pages copied back.
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            boolean complete = cursor.getInt(0) == 0 && cursor.getInt(1) == cursor.getInt(2);
+            if (!complete) {
+                Log.d(LOG_TAG, "Checkpoint (" + mode + ") copied " + cursor.getInt(2) + " of "
+                        + cursor.getInt(1) + " pages");
+            }
+            return complete;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return how many checkpoints the policy has asked for, or were asked for directly
+     */
+    int getCheckpointCount() {
+        return mCheckpoints.get();
     }
 
     @Override
@@ -75,12 +185,79 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
 
                 // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+                // per location, it's created a UNIQUE constraint with REPLACE strategy.
+                // Location comes first: every query picks a location and then a date or a range
+                // of dates, and this index is what serves the single day the detail view reads.
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        // One row per sync, for measuring how syncs perform in the field.  The provider trims it
+        // to the most recent SyncMetricsEntry.MAX_ROWS rows.
+        final String SQL_CREATE_SYNC_METRICS_TABLE = "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+                SyncMetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncMetricsEntry.COLUMN_START_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_LOCATIONS + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_NETWORK_TYPE + " TEXT NOT NULL, " +
+                SyncMetricsEntry.COLUMN_CONNECT_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_TTFB + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_BYTES_READ + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_PARSE_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_ROWS_INSERTED + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_ROWS_UPDATED + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_ROWS_DELETED + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_FAN_OUT_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_WATCH_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_WIDGETS_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_MUZEI_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_NOTIFICATION_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_CACHE_HITS + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_CACHE_MISSES + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_CACHE_BYTES + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_DAYS_ACCEPTED + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_DAYS_QUARANTINED + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_OUTCOME + " INTEGER NOT NULL " +
+                " );";
+
+        // One row per 3 hour step per location, about 8 times as many rows as the weather table.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "));";
+
+        // Location first, then time: a window query for one location is a single range scan
+        // that comes back already in time order, however many other locations are stored.
+        final String SQL_CREATE_HOURLY_INDEX = "CREATE UNIQUE INDEX " +
+                HOURLY_LOCATION_TIMESTAMP_INDEX + " ON " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry.COLUMN_LOC_KEY + ", " + HourlyEntry.COLUMN_TIMESTAMP + ");";
+
+        // The rest of the row (humidity, pressure, wind) is only wanted for one day at a time, by
+        // the detail view, so it's left out rather than paid for on every write.
+        final String SQL_CREATE_WEATHER_FORECAST_INDEX = "CREATE INDEX " +
+                WEATHER_LOCATION_FORECAST_INDEX + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ");";
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_FORECAST_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_INDEX);
     }
 
     @Override
@@ -93,6 +270,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
@@ -17,14 +17,25 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
@@ -34,8 +45,16 @@ public class WeatherProvider extends ContentProvider {
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int SYNC_METRICS = 400;
+    static final int HOURLY = 500;
+    static final int HOURLY_WITH_LOCATION = 501;
+
+    // Passed to upsertWeather() as the trim date when nothing should be trimmed.
+    private static final long NO_TRIM = Long.MIN_VALUE;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // Package-private, like the selections below, so the query plan tests can build the same SQL.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -49,25 +68,44 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location.location_setting = ? AND hourly.timestamp >= ? AND hourly.timestamp < ?
+    static final String sLocationSettingWithWindowSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_TIMESTAMP + " >= ? AND " +
+                    WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_TIMESTAMP + " < ? ";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -108,6 +146,30 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    /*
+        The location is found through its unique location_setting, and the window is then a
+        single range scan of the (location_id, timestamp) index, so this stays fast however many
+        locations are stored.  With no sort order the steps come back in time order.
+     */
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long startTime = WeatherContract.HourlyEntry.getStartTimeFromUri(uri);
+        long endTime = WeatherContract.HourlyEntry.getEndTimeFromUri(uri);
+        if (sortOrder == null) {
+            sortOrder = WeatherContract.HourlyEntry.TABLE_NAME + "."
+                    + WeatherContract.HourlyEntry.COLUMN_TIMESTAMP + " ASC";
+        }
+
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sLocationSettingWithWindowSelection,
+                new String[]{locationSetting, Long.toString(startTime), Long.toString(endTime)},
+                null,
+                null,
+                sortOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +192,11 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
         return matcher;
     }
 
@@ -164,6 +231,11 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -213,6 +285,37 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_metrics"
+            case SYNC_METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -229,6 +332,7 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        WeatherChanges weatherChanges = null;
 
         switch (match) {
             case WEATHER: {
@@ -238,6 +342,8 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                weatherChanges = new WeatherChanges();
+                weatherChanges.add(values);
                 break;
             }
             case LOCATION: {
@@ -248,10 +354,28 @@ public class WeatherProvider extends ContentProvider {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case SYNC_METRICS: {
+                returnUri = insertSyncMetrics(db, values);
+                break;
+            }
+            case HOURLY: {
+                long _id = db.insertWithOnConflict(WeatherContract.HourlyEntry.TABLE_NAME, null,
+                        values, SQLiteDatabase.CONFLICT_REPLACE);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(WeatherContract.HourlyEntry.CONTENT_URI, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        mOpenHelper.onWriteFinished(db);
+        if (weatherChanges != null) {
+            weatherChanges.notifyObservers(getContext().getContentResolver(), db);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
         return returnUri;
     }
 
@@ -260,27 +384,73 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        WeatherChanges weatherChanges = null;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                // The rows are looked up first so only their locations and days are notified.
+                weatherChanges = new WeatherChanges();
+                db.beginTransaction();
+                try {
+                    weatherChanges.addMatching(db, selection, selectionArgs);
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case SYNC_METRICS:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mOpenHelper.onWriteFinished(db);
+            if (weatherChanges != null) {
+                weatherChanges.notifyObservers(getContext().getContentResolver(), db);
+            } else {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
         }
         return rowsDeleted;
     }
 
+    /*
+        Adds a sync metrics row and drops the oldest ones, so the table never holds more than
+        SyncMetricsEntry.MAX_ROWS.  The ids only ever grow (AUTOINCREMENT), so everything at or
+        below the new id minus MAX_ROWS is old enough to go.
+     */
+    private static Uri insertSyncMetrics(SQLiteDatabase db, ContentValues values) {
+        db.beginTransaction();
+        try {
+            long _id = db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, values);
+            if (_id <= 0) {
+                throw new android.database.SQLException("Failed to insert row into "
+                        + WeatherContract.SyncMetricsEntry.CONTENT_URI);
+            }
+            db.delete(WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                    WeatherContract.SyncMetricsEntry._ID + " <= ?",
+                    new String[]{Long.toString(_id - WeatherContract.SyncMetricsEntry.MAX_ROWS)});
+            db.setTransactionSuccessful();
+            return ContentUris.withAppendedId(WeatherContract.SyncMetricsEntry.CONTENT_URI, _id);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -295,12 +465,27 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        WeatherChanges weatherChanges = null;
 
         switch (match) {
             case WEATHER:
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                weatherChanges = new WeatherChanges();
+                db.beginTransaction();
+                try {
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        // Rows moving to another location or day; both ends would need telling.
+                        weatherChanges.addEverything();
+                    } else {
+                        weatherChanges.addMatching(db, selection, selectionArgs);
+                    }
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
@@ -310,7 +495,12 @@ public class WeatherProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mOpenHelper.onWriteFinished(db);
+            if (weatherChanges != null) {
+                weatherChanges.notifyObservers(getContext().getContentResolver(), db);
+            } else {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
         }
         return rowsUpdated;
     }
@@ -321,27 +511,530 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                int returnCount = insertWeather(db, values);
+                mOpenHelper.onWriteFinished(db);
+                WeatherChanges weatherChanges = new WeatherChanges();
+                for (ContentValues value : values) {
+                    weatherChanges.add(value);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                weatherChanges.notifyObservers(getContext().getContentResolver(), db);
                 return returnCount;
+            case HOURLY:
+                int hourlyCount = insertHourly(db, values);
+                if (hourlyCount > 0) {
+                    mOpenHelper.onWriteFinished(db);
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                return hourlyCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /*
+        A step that is already stored is replaced, so a batch can be written again without
+        deleting first.  Observers aren't notified; that's up to the caller.
+     */
+    private static int insertHourly(SQLiteDatabase db, ContentValues[] values) {
+        db.beginTransaction();
+        int hourlyCount = 0;
+        try {
+            for (ContentValues value : values) {
+                long _id = db.insertWithOnConflict(WeatherContract.HourlyEntry.TABLE_NAME,
+                        null, value, SQLiteDatabase.CONFLICT_REPLACE);
+                if (_id != -1) {
+                    hourlyCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return hourlyCount;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.WeatherEntry.METHOD_UPSERT.equals(method)) {
+            return upsertWeather(null,
+                    getValuesFromExtras(extras, WeatherContract.WeatherEntry.EXTRA_VALUES),
+                    NO_TRIM);
+        }
+        if (WeatherContract.WeatherEntry.METHOD_APPLY_DELTA.equals(method)) {
+            String locationSetting = extras == null ? null
+                    : extras.getString(WeatherContract.WeatherEntry.EXTRA_LOCATION_SETTING);
+            if (locationSetting == null) {
+                throw new IllegalArgumentException(
+                        "Missing " + WeatherContract.WeatherEntry.EXTRA_LOCATION_SETTING);
+            }
+            return upsertWeather(locationSetting,
+                    getValuesFromExtras(extras, WeatherContract.WeatherEntry.EXTRA_VALUES),
+                    NO_TRIM);
+        }
+        if (WeatherContract.WeatherEntry.METHOD_REPLACE_FORECAST.equals(method)) {
+            if (extras == null
+                    || !extras.containsKey(WeatherContract.WeatherEntry.EXTRA_TRIM_DATE)) {
+                throw new IllegalArgumentException(
+                        "Missing " + WeatherContract.WeatherEntry.EXTRA_TRIM_DATE);
+            }
+            return upsertWeather(null,
+                    getValuesFromExtras(extras, WeatherContract.WeatherEntry.EXTRA_VALUES),
+                    extras.getLong(WeatherContract.WeatherEntry.EXTRA_TRIM_DATE));
+        }
+        if (WeatherContract.HourlyEntry.METHOD_INSERT_QUIETLY.equals(method)) {
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            int inserted = insertHourly(db,
+                    getValuesFromExtras(extras, WeatherContract.HourlyEntry.EXTRA_VALUES));
+            if (inserted > 0) {
+                mOpenHelper.onWriteFinished(db);
+            }
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.HourlyEntry.EXTRA_INSERTED, inserted);
+            return result;
+        }
+        if (WeatherContract.LocationEntry.METHOD_INSERT_OR_GET.equals(method)) {
+            ContentValues values = extras == null ? null
+                    : (ContentValues) extras.getParcelable(WeatherContract.LocationEntry.EXTRA_VALUES);
+            if (values == null) {
+                throw new IllegalArgumentException("Missing " + WeatherContract.LocationEntry.EXTRA_VALUES);
+            }
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.LocationEntry.EXTRA_LOCATION_ID, insertOrGetLocation(values));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /*
+        Looks up the location by its setting and inserts it if it's new, inside one transaction, so
+        two syncs registering the same location can't both insert it.  The city name and
+        coordinates of an existing location are only written when they changed, and observers
+        only hear about it when something was.
+     */
+    private long insertOrGetLocation(ContentValues values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("Locations need a location setting");
+        }
+
+        long locationId;
+        boolean changed = false;
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    null,
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{locationSetting},
+                    null,
+                    null,
+                    null);
+            try {
+                if (cursor.moveToFirst()) {
+                    locationId = cursor.getLong(
+                            cursor.getColumnIndex(WeatherContract.LocationEntry._ID));
+                    // Typed, since a REAL read back as a string only keeps 6 significant digits
+                    // and most coordinates would never compare equal.
+                    ContentValues stored = readRow(cursor);
+                    if (!hasSameValues(values, stored)) {
+                        db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                                WeatherContract.LocationEntry._ID + " = ?",
+                                new String[]{Long.toString(locationId)});
+                        changed = true;
+                    }
+                } else {
+                    locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                    if (locationId == -1) {
+                        throw new android.database.SQLException("Failed to insert location "
+                                + locationSetting);
+                    }
+                    changed = true;
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (changed) {
+            mOpenHelper.onWriteFinished(db);
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.LocationEntry.CONTENT_URI, null);
+        }
+        return locationId;
+    }
+
+    private static ContentValues[] getValuesFromExtras(Bundle extras, String key) {
+        // When the Bundle has been through a Parcel the array comes back as a Parcelable[],
+        // so copy it over rather than casting the array itself.
+        Parcelable[] parcelables = extras == null ? null : extras.getParcelableArray(key);
+        if (parcelables == null) {
+            throw new IllegalArgumentException("Missing " + key);
+        }
+        ContentValues[] values = new ContentValues[parcelables.length];
+        for (int i = 0; i < parcelables.length; i++) {
+            values[i] = (ContentValues) parcelables[i];
+        }
+        return values;
+    }
+
+    /*
+        Writes weather rows without the delete-and-reinsert that ON CONFLICT REPLACE does.  Each
+        incoming row is matched against the stored row for the same location and date; new rows
+        are inserted, rows with different values are updated in place and identical rows are left
+        alone.  Observers are only notified if something was actually written, so a sync that
+        brings back the same forecast doesn't restart every CursorLoader, and then only for the
+        locations and days that were.
+
+        Given a location setting, the rows are a delta for that location instead: they carry no
+        location key, may hold only some columns, and days that aren't stored are skipped rather
+        than inserted half empty.
+
+        Given a trim date, the rows replace each of their locations' forecast: days stored after
+        the last one sent for the location are deleted, since a shorter forecast (e.g. on a
+        metered network) would otherwise leave older days behind looking current.  Every row
+        dated on or before the trim date is deleted too.  It all happens in the same transaction,
+        so a sync's whole write is one commit and observers never see the new days without the
+        old ones trimmed, or the other way round.
+     */
+    private Bundle upsertWeather(String deltaLocationSetting, ContentValues[] values,
+                                 long trimDate) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final boolean delta = deltaLocationSetting != null;
+        WeatherChanges weatherChanges = new WeatherChanges();
+        int deleted = 0;
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        int skipped = 0;
+        int significantChanges = 0;
+
+        // location_id -> (date -> stored row), loaded once per location in the batch
+        HashMap<Long, HashMap<Long, ContentValues>> storedByLocation =
+                new HashMap<Long, HashMap<Long, ContentValues>>();
+        // location_id -> the last date sent for it
+        HashMap<Long, Long> lastDateByLocation = new HashMap<Long, Long>();
+
+        db.beginTransaction();
+        WeatherInserter inserter = null;
+        try {
+            long deltaLocationId = delta ? getLocationId(db, deltaLocationSetting) : -1;
+            for (ContentValues value : values) {
+                if (delta) {
+                    if (deltaLocationId == -1) {
+                        skipped++;
+                        continue;
+                    }
+                    value.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, deltaLocationId);
+                }
+                normalizeDate(value);
+                Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (locationId == null || date == null) {
+                    throw new IllegalArgumentException("Weather rows need a location and a date");
+                }
+
+                Long lastDate = lastDateByLocation.get(locationId);
+                if (lastDate == null || date > lastDate) {
+                    lastDateByLocation.put(locationId, date);
+                }
+
+                HashMap<Long, ContentValues> storedRows = storedByLocation.get(locationId);
+                if (storedRows == null) {
+                    storedRows = loadWeatherRows(db, locationId);
+                    storedByLocation.put(locationId, storedRows);
+                }
+
+                ContentValues stored = storedRows.get(date);
+                if (stored == null && delta) {
+                    skipped++;
+                } else if (stored == null) {
+                    if (inserter == null) {
+                        inserter = new WeatherInserter(db);
+                    }
+                    long _id = inserter.insert(value);
+                    if (_id != -1) {
+                        inserted++;
+                        weatherChanges.add(locationId, date);
+                        ContentValues insertedRow = new ContentValues(value);
+                        insertedRow.put(WeatherContract.WeatherEntry._ID, _id);
+                        storedRows.put(date, insertedRow);
+                    }
+                } else if (hasSameValues(value, stored)) {
+                    unchanged++;
+                } else {
+                    if (isSignificantChange(value, stored)) {
+                        significantChanges++;
+                    }
+                    db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                            WeatherContract.WeatherEntry._ID + " = ?",
+                            new String[]{stored.getAsString(WeatherContract.WeatherEntry._ID)});
+                    updated++;
+                    weatherChanges.add(locationId, date);
+                    stored.putAll(value);
+                }
+            }
+            if (trimDate != NO_TRIM) {
+                String afterSelection = WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " > ?";
+                for (Map.Entry<Long, Long> lastDate : lastDateByLocation.entrySet()) {
+                    String[] afterArgs = {lastDate.getKey().toString(),
+                            lastDate.getValue().toString()};
+                    weatherChanges.addMatching(db, afterSelection, afterArgs);
+                    deleted += db.delete(WeatherContract.WeatherEntry.TABLE_NAME, afterSelection,
+                            afterArgs);
+                }
+                String trimSelection = WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?";
+                String[] trimArgs = {Long.toString(trimDate)};
+                weatherChanges.addMatching(db, trimSelection, trimArgs);
+                deleted += db.delete(WeatherContract.WeatherEntry.TABLE_NAME, trimSelection,
+                        trimArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (inserter != null) {
+                inserter.close();
+            }
+            db.endTransaction();
+        }
+
+        if (inserted + updated + deleted > 0) {
+            mOpenHelper.onWriteFinished(db);
+            weatherChanges.notifyObservers(getContext().getContentResolver(), db);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_INSERTED, inserted);
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_UPDATED, updated);
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_UNCHANGED, unchanged);
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_SIGNIFICANT_CHANGES, significantChanges);
+        if (delta) {
+            result.putInt(WeatherContract.WeatherEntry.EXTRA_SKIPPED, skipped);
+        }
+        if (trimDate != NO_TRIM) {
+            result.putInt(WeatherContract.WeatherEntry.EXTRA_DELETED, deleted);
+        }
+        return result;
+    }
+
+    /*
+        Inserts weather rows in one transaction through a single compiled statement.  A row that
+        breaks a constraint is skipped, as insert() would.
+
+        @return how many rows were inserted
+     */
+    static int insertWeather(SQLiteDatabase db, ContentValues[] values) {
+        int count = 0;
+        db.beginTransaction();
+        WeatherInserter inserter = new WeatherInserter(db);
+        try {
+            for (ContentValues value : values) {
+                if (inserter.insert(value) != -1) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            inserter.close();
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /*
+        One compiled INSERT for the weather table, reused for every row of a batch, so the SQL is
+        parsed once per batch rather than once per row, and one Time for normalizing the dates.
+        Not thread safe; close it when the batch is done.
+     */
+    private static class WeatherInserter {
+        // The columns the statement binds, in the weather table's order.
+        private static final String[] COLUMNS = {
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                WeatherContract.WeatherEntry.COLUMN_DATE,
+                WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherContract.WeatherEntry.COLUMN_DEGREES
+        };
+        private static final String SQL;
+
+        static {
+            StringBuilder sql = new StringBuilder("INSERT INTO ")
+                    .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" (");
+            StringBuilder params = new StringBuilder();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(COLUMNS[i]);
+                params.append(i == 0 ? "?" : ", ?");
+            }
+            SQL = sql.append(") VALUES (").append(params).append(")").toString();
+        }
+
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mInsert;
+        private final Time mTime = new Time();
+
+        WeatherInserter(SQLiteDatabase db) {
+            mDb = db;
+            mInsert = db.compileStatement(SQL);
+        }
+
+        /*
+            @return the new row's id, or -1 if it wasn't inserted
+         */
+        long insert(ContentValues values) {
+            int bound = 0;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (values.containsKey(COLUMNS[i])) {
+                    bound++;
+                }
+            }
+            // As insert() always has, this hands the normalized date back in the caller's values.
+            Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (date != null) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_DATE, normalizeDate(date));
+            }
+            if (bound != values.size()) {
+                // Columns the statement doesn't bind, e.g. an _id.  Rare enough to take the slow
+                // way.
+                return mDb.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+            }
+
+            for (int i = 0; i < COLUMNS.length; i++) {
+                DatabaseUtils.bindObjectToProgram(mInsert, i + 1, values.get(COLUMNS[i]));
+            }
+            return execute();
+        }
+
+        private long execute() {
+            try {
+                return mInsert.executeInsert();
+            } catch (android.database.SQLException e) {
+                Log.e(LOG_TAG, "Error inserting weather row", e);
+                return -1;
+            }
+        }
+
+        // WeatherContract.normalizeDate() without a new Time for every row.
+        private long normalizeDate(long date) {
+            mTime.set(date);
+            int julianDay = Time.getJulianDay(date, mTime.gmtoff);
+            return mTime.setJulianDay(julianDay);
+        }
+
+        void close() {
+            mInsert.close();
+        }
+    }
+
+    // The _id of the location with this setting, or -1 if there isn't one.
+    private static long getLocationId(SQLiteDatabase db, String locationSetting) {
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static HashMap<Long, ContentValues> loadWeatherRows(SQLiteDatabase db, long locationId) {
+        HashMap<Long, ContentValues> rows = new HashMap<Long, ContentValues>();
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                null);
+        try {
+            int dateIndex = cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getLong(dateIndex), readRow(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    // The cursor's current row, with every value read as the type SQLite stored it as.
+    private static ContentValues readRow(Cursor cursor) {
+        int columnCount = cursor.getColumnCount();
+        ContentValues row = new ContentValues(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            String column = cursor.getColumnName(i);
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row.put(column, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row.put(column, cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_NULL:
+                    row.putNull(column);
+                    break;
+                default:
+                    row.put(column, cursor.getString(i));
+            }
+        }
+        return row;
+    }
+
+    // True if every column in incoming already holds the same value in stored.  Numbers are
+    // compared by value, since SQLite hands REAL columns back as doubles whatever was put in.
+    private static boolean hasSameValues(ContentValues incoming, ContentValues stored) {
+        for (Map.Entry<String, Object> entry : incoming.valueSet()) {
+            Object newValue = entry.getValue();
+            Object oldValue = stored.get(entry.getKey());
+            if (newValue == null || oldValue == null) {
+                if (newValue != oldValue) {
+                    return false;
+                }
+            } else if (newValue instanceof Number && oldValue instanceof Number) {
+                if (Double.compare(((Number) newValue).doubleValue(),
+                        ((Number) oldValue).doubleValue()) != 0) {
+                    return false;
+                }
+            } else if (!newValue.toString().equals(oldValue.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A temperature has to move at least this much (in degrees C) to count as a real change.
+    private static final double SIGNIFICANT_TEMP_CHANGE = 1.0;
+
+    private static boolean isSignificantChange(ContentValues incoming, ContentValues stored) {
+        Integer newWeatherId = incoming.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        if (newWeatherId != null && !newWeatherId.equals(
+                stored.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID))) {
+            return true;
+        }
+        return hasTemperatureMoved(incoming, stored, WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)
+                || hasTemperatureMoved(incoming, stored, WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+    }
+
+    private static boolean hasTemperatureMoved(ContentValues incoming, ContentValues stored,
+                                               String column) {
+        Double newTemp = incoming.getAsDouble(column);
+        Double oldTemp = stored.getAsDouble(column);
+        return newTemp != null && oldTemp != null
+                && Math.abs(newTemp - oldTemp) >= SIGNIFICANT_TEMP_CHANGE;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -29,6 +29,7 @@ import android.widget.Toast;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.sync.ForecastDeltaApplier;
 import com.google.android.gms.gcm.GcmListenerService;
 
 import org.json.JSONException;
@@ -38,6 +39,7 @@ public class MyGcmListenerService extends GcmListenerService {
 
     private static final String TAG = "MyGcmListenerService";
 
+    private static final String EXTRA_TYPE = "type";
     private static final String EXTRA_DATA = "data";
     private static final String EXTRA_WEATHER = "weather";
     private static final String EXTRA_LOCATION = "location";
@@ -61,7 +63,16 @@ public class MyGcmListenerService extends GcmListenerService {
                 Toast.makeText(this, "SenderID string needs to be set", Toast.LENGTH_LONG).show();
             }
             // Not a bad idea to check that the message is coming from your server.
-            if ((senderId).equals(from)) {
+            if ((senderId).equals(from)
+                    && ForecastDeltaApplier.MESSAGE_TYPE.equals(data.getString(EXTRA_TYPE))) {
+                // A forecast change from our server: store it instead of waiting for a sync.
+                try {
+                    ForecastDeltaApplier.apply(this, new JSONObject(data.getString(EXTRA_DATA)));
+                } catch (JSONException e) {
+                    // The next sync brings in the whole forecast anyway.
+                    Log.e(TAG, "Bad forecast delta", e);
+                }
+            } else if ((senderId).equals(from)) {
                 // Process message and then post a notification of the received message.
                 try {
                     JSONObject jsonObject = new JSONObject(data.getString(EXTRA_DATA));
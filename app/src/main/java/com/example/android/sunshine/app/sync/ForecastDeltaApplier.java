@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Wearable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies a forecast delta pushed by our server, so devices hear about a changed forecast
+ * without each of them polling OWM.  A delta looks like
+ *
+ * <pre>
+ * {"location": "94043",
+ *  "days": [{"date": 1445212800000, "max": 21.5, "weather_id": 500, "short_desc": "Rain"}]}
+ * </pre>
+ *
+ * where each day has its UTC date and only the columns that changed, named as in
+ * {@link WeatherContract.WeatherEntry}.  The days are written in one transaction, and then the
+ * usual fan-out tells whoever shows what changed.  Days we don't have are skipped: a delta only
+ * corrects a forecast, the next sync brings in new days.
+ */
+public class ForecastDeltaApplier {
+    private static final String LOG_TAG = ForecastDeltaApplier.class.getSimpleName();
+
+    // The value of the push message's type for a forecast delta.
+    public static final String MESSAGE_TYPE = "forecast_delta";
+
+    private static final String KEY_LOCATION = "location";
+    private static final String KEY_DAYS = "days";
+
+    // The columns a delta may change.  Anything else in a day is ignored, so the server can
+    // send fields a newer version of the app understands.
+    private static final String[] DELTA_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final String[] TODAY_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_LOC_KEY = 0;
+    private static final int INDEX_DATE = 1;
+    private static final int INDEX_WEATHER_ID = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+    private static final int INDEX_SHORT_DESC = 5;
+
+    // How long fan-out waits for the watch connection before leaving the watch out.
+    private static final long WEARABLE_CONNECT_TIMEOUT_SECONDS = 10;
+
+    private ForecastDeltaApplier() {
+    }
+
+    /**
+     * Stores a delta and fans out what it changed.  This blocks until fan-out is done, so it must
+     * not be called on the main thread.
+     *
+     * @return how many stored days the delta changed
+     * @throws JSONException if the delta isn't one
+     */
+    public static int apply(Context context, JSONObject delta) throws JSONException {
+        String locationSetting = delta.getString(KEY_LOCATION);
+        JSONArray days = delta.getJSONArray(KEY_DAYS);
+
+        ContentValues[] values = new ContentValues[days.length()];
+        for (int i = 0; i < days.length(); i++) {
+            JSONObject day = days.getJSONObject(i);
+            ContentValues dayValues = new ContentValues();
+            dayValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    day.getLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+            for (String column : DELTA_COLUMNS) {
+                if (!day.has(column)) {
+                    continue;
+                }
+                if (column.equals(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC)) {
+                    dayValues.put(column, day.getString(column));
+                } else if (column.equals(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)) {
+                    dayValues.put(column, day.getInt(column));
+                } else {
+                    dayValues.put(column, day.getDouble(column));
+                }
+            }
+            values[i] = dayValues;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putString(WeatherContract.WeatherEntry.EXTRA_LOCATION_SETTING, locationSetting);
+        extras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_VALUES, values);
+        Bundle counts = context.getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_APPLY_DELTA, null, extras);
+        int updated = counts.getInt(WeatherContract.WeatherEntry.EXTRA_UPDATED);
+        Log.d(LOG_TAG, "Delta for " + locationSetting + ": " + updated + " updated, "
+                + counts.getInt(WeatherContract.WeatherEntry.EXTRA_UNCHANGED) + " unchanged, "
+                + counts.getInt(WeatherContract.WeatherEntry.EXTRA_SKIPPED) + " skipped");
+        if (updated == 0) {
+            return 0;
+        }
+
+        // Today only matters to the consumers when it's the location the user looks at.
+        ContentValues preferredToday = null;
+        if (locationSetting.equals(Utility.getPreferredLocation(context))) {
+            preferredToday = loadToday(context, locationSetting);
+        }
+
+        GoogleApiClient googleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+        boolean connected = googleApiClient.blockingConnect(
+                WEARABLE_CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS).isSuccess();
+        try {
+            new ForecastFanOut(context, connected ? googleApiClient : null)
+                    .process(new ForecastFanOut.Event(true, preferredToday));
+        } finally {
+            googleApiClient.disconnect();
+        }
+        return updated;
+    }
+
+    private static ContentValues loadToday(Context context, String locationSetting) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                        System.currentTimeMillis()),
+                TODAY_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues today = new ContentValues();
+            today.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, cursor.getLong(INDEX_LOC_KEY));
+            today.put(WeatherContract.WeatherEntry.COLUMN_DATE, cursor.getLong(INDEX_DATE));
+            today.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    cursor.getInt(INDEX_WEATHER_ID));
+            today.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                    cursor.getDouble(INDEX_MAX_TEMP));
+            today.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                    cursor.getDouble(INDEX_MIN_TEMP));
+            today.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                    cursor.getString(INDEX_SHORT_DESC));
+            return today;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
+
+import com.example.android.sunshine.app.MainActivity;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out stage of the {@link SyncPipeline}: tells everything outside the database that the
+ * forecast changed — the watch face, the widgets, Muzei and the daily notification.
+ *
+ * Today's row for the preferred location is compared with the one last fanned out, so each
+ * consumer is only told about the changes it shows: the watch doesn't need waking because day
+ * ten moved.  The notification is also told whenever one is due, as today may not change again
+ * after the sync that found it too early.  The consumers that are told run at once on their own
+ * threads, and each one's latency is reported back for the sync metrics.
+ *
+ * A sync where the server answered for the preferred location always fans out, even if nothing
+ * changed, so a notification that is due gets posted while the server keeps answering 304.
+ */
+class ForecastFanOut implements SyncStage<ForecastFanOut.Event, ForecastFanOut.Dispatch> {
+    private static final String LOG_TAG = ForecastFanOut.class.getSimpleName();
+
+    static final String STAGE_NAME = "fan-out";
+
+    // What changed since the last fan-out.  A new day, or a new preferred location, counts as
+    // a change to both today's condition and its temperatures.
+    static final int CHANGE_TODAY_CONDITION = 1;
+    static final int CHANGE_TODAY_TEMPS = 1 << 1;
+    // Any stored day, for any location, was written or deleted.
+    static final int CHANGE_RANGE = 1 << 2;
+    // Not a change to the data: a day has passed since the last weather notification, so one is
+    // due whether or not today changed.
+    static final int CHANGE_NOTIFICATION_DUE = 1 << 3;
+
+    static final String CONSUMER_WATCH = "watch";
+    static final String CONSUMER_WIDGETS = "widgets";
+    static final String CONSUMER_MUZEI = "muzei";
+    static final String CONSUMER_NOTIFICATION = "notification";
+
+    // How long a fan-out waits for its consumers.  One that takes longer keeps running, but its
+    // latency isn't recorded.
+    private static final long CONSUMER_TIMEOUT_SECONDS = 30;
+    private static final long CONSUMER_KEEP_ALIVE_SECONDS = 30;
+
+    // Remembers today's row as of the last fan-out.
+    private static final String PREFS_NAME = "fan_out";
+    private static final String KEY_LOCATION_ID = "location_id";
+    private static final String KEY_DATE = "date";
+    private static final String KEY_WEATHER_ID = "weather_id";
+    private static final String KEY_MAX_TEMP = "max";
+    private static final String KEY_MIN_TEMP = "min";
+
+    // One thread per consumer, so a slow one never delays the others.
+    private static final ThreadPoolExecutor sConsumerExecutor = newConsumerExecutor();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int WEATHER_NOTIFICATION_ID = 3004;
+
+    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_WEATHER_ID = 0;
+    private static final int INDEX_MAX_TEMP = 1;
+    private static final int INDEX_MIN_TEMP = 2;
+    private static final int INDEX_SHORT_DESC = 3;
+
+    /**
+     * What a sync stored, as far as the consumers are concerned.
+     */
+    static class Event {
+        // True if any stored day was written or deleted.
+        final boolean rangeChanged;
+        // Today's row for the preferred location, if it was fetched; null otherwise.
+        final ContentValues preferredToday;
+
+        Event(boolean rangeChanged, ContentValues preferredToday) {
+            this.rangeChanged = rangeChanged;
+            this.preferredToday = preferredToday;
+        }
+    }
+
+    /**
+     * Who was told what.
+     */
+    static class Dispatch {
+        // The CHANGE_* flags that were found.
+        final int changes;
+        // How long each consumer that was told took, in milliseconds.  Consumers that weren't
+        // told, or didn't finish in time, are missing.
+        final Map<String, Long> consumerMillis;
+
+        Dispatch(int changes, Map<String, Long> consumerMillis) {
+            this.changes = changes;
+            this.consumerMillis = consumerMillis;
+        }
+    }
+
+    /**
+     * Something outside the database that shows the forecast.
+     */
+    private abstract static class Consumer {
+        final String name;
+        // The CHANGE_* flags it shows.
+        final int interests;
+
+        Consumer(String name, int interests) {
+            this.name = name;
+            this.interests = interests;
+        }
+
+        abstract void onChanged(Event event);
+    }
+
+    private final Context mContext;
+    private final GoogleApiClient mGoogleApiClient;
+    private final List<Consumer> mConsumers;
+
+    ForecastFanOut(Context context, GoogleApiClient googleApiClient) {
+        mContext = context;
+        mGoogleApiClient = googleApiClient;
+
+        final int today = CHANGE_TODAY_CONDITION | CHANGE_TODAY_TEMPS;
+        List<Consumer> consumers = new ArrayList<Consumer>();
+        consumers.add(new Consumer(CONSUMER_WATCH, today) {
+            @Override
+            void onChanged(Event event) {
+                updateWatchface(event.preferredToday);
+            }
+        });
+        // The detail widget lists the days after today too.
+        consumers.add(new Consumer(CONSUMER_WIDGETS, today | CHANGE_RANGE) {
+            @Override
+            void onChanged(Event event) {
+                updateWidgets();
+            }
+        });
+        // The artwork only depends on today's condition.
+        consumers.add(new Consumer(CONSUMER_MUZEI, CHANGE_TODAY_CONDITION) {
+            @Override
+            void onChanged(Event event) {
+                updateMuzei();
+            }
+        });
+        consumers.add(new Consumer(CONSUMER_NOTIFICATION, today | CHANGE_NOTIFICATION_DUE) {
+            @Override
+            void onChanged(Event event) {
+                notifyWeather();
+            }
+        });
+        mConsumers = Collections.unmodifiableList(consumers);
+    }
+
+    @Override
+    public String getName() {
+        return STAGE_NAME;
+    }
+
+    @Override
+    public Dispatch process(final Event event) {
+        SharedPreferences prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        int changes = getChanges(loadLastToday(prefs), event.preferredToday, event.rangeChanged);
+        if (isNotificationDue()) {
+            // Otherwise a day whose first sync came too early would never get its notification.
+            changes |= CHANGE_NOTIFICATION_DUE;
+        }
+
+        List<Consumer> interested = new ArrayList<Consumer>();
+        for (Consumer consumer : mConsumers) {
+            if ((consumer.interests & changes) != 0) {
+                interested.add(consumer);
+            }
+        }
+
+        final Map<String, Long> consumerMillis = new ConcurrentHashMap<String, Long>();
+        final CountDownLatch done = new CountDownLatch(interested.size());
+        for (final Consumer consumer : interested) {
+            sConsumerExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtime();
+                    try {
+                        consumer.onChanged(event);
+                        consumerMillis.put(consumer.name, SystemClock.elapsedRealtime() - start);
+                    } catch (RuntimeException e) {
+                        // A broken consumer must not take the others down with it.
+                        Log.e(LOG_TAG, "Error updating " + consumer.name, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            if (!done.await(CONSUMER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.d(LOG_TAG, "Gave up waiting for fan-out consumers");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (event.preferredToday != null) {
+            saveLastToday(prefs, event.preferredToday);
+        }
+        Log.d(LOG_TAG, "Fan-out for changes " + Integer.toBinaryString(changes)
+                + ", consumer timings " + consumerMillis);
+        return new Dispatch(changes, consumerMillis);
+    }
+
+    /**
+     * Works out what changed between the today we last fanned out and this sync.
+     *
+     * @param lastToday today's row as of the last fan-out, or null if there wasn't one
+     * @param today today's row from this sync, or null if it wasn't fetched
+     * @param rangeChanged true if any stored day was written or deleted
+     * @return the CHANGE_* flags that apply
+     */
+    static int getChanges(ContentValues lastToday, ContentValues today, boolean rangeChanged) {
+        int changes = rangeChanged ? CHANGE_RANGE : 0;
+        if (today == null) {
+            return changes;
+        }
+        if (lastToday == null
+                || !equal(lastToday, today, WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                || !equal(lastToday, today, WeatherContract.WeatherEntry.COLUMN_DATE)) {
+            // A different day or a different place: all of today is news.
+            return changes | CHANGE_TODAY_CONDITION | CHANGE_TODAY_TEMPS;
+        }
+        if (!equal(lastToday, today, WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)) {
+            changes |= CHANGE_TODAY_CONDITION;
+        }
+        if (!equal(lastToday, today, WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)
+                || !equal(lastToday, today, WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)) {
+            changes |= CHANGE_TODAY_TEMPS;
+        }
+        return changes;
+    }
+
+    // Compares numerically, since a row read back from preferences has different boxed types.
+    private static boolean equal(ContentValues lhs, ContentValues rhs, String column) {
+        Object lhsValue = lhs.get(column);
+        Object rhsValue = rhs.get(column);
+        if (lhsValue instanceof Number && rhsValue instanceof Number) {
+            return Double.compare(((Number) lhsValue).doubleValue(),
+                    ((Number) rhsValue).doubleValue()) == 0;
+        }
+        return lhsValue == null ? rhsValue == null : lhsValue.equals(rhsValue);
+    }
+
+    private static ContentValues loadLastToday(SharedPreferences prefs) {
+        if (!prefs.contains(KEY_DATE)) {
+            return null;
+        }
+        ContentValues lastToday = new ContentValues();
+        lastToday.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                prefs.getLong(KEY_LOCATION_ID, -1));
+        lastToday.put(WeatherContract.WeatherEntry.COLUMN_DATE, prefs.getLong(KEY_DATE, 0));
+        lastToday.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                prefs.getInt(KEY_WEATHER_ID, 0));
+        lastToday.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                Double.longBitsToDouble(prefs.getLong(KEY_MAX_TEMP, 0)));
+        lastToday.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                Double.longBitsToDouble(prefs.getLong(KEY_MIN_TEMP, 0)));
+        return lastToday;
+    }
+
+    private static void saveLastToday(SharedPreferences prefs, ContentValues today) {
+        Long locationId = today.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = today.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        Integer weatherId = today.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        Double high = today.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        Double low = today.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        if (locationId == null || date == null || weatherId == null || high == null
+                || low == null) {
+            return;
+        }
+        prefs.edit()
+                .putLong(KEY_LOCATION_ID, locationId)
+                .putLong(KEY_DATE, date)
+                .putInt(KEY_WEATHER_ID, weatherId)
+                .putLong(KEY_MAX_TEMP, Double.doubleToRawLongBits(high))
+                .putLong(KEY_MIN_TEMP, Double.doubleToRawLongBits(low))
+                .apply();
+    }
+
+    private void updateWatchface(ContentValues today) {
+        // Update Watchface with today's most recent forecast
+        if (today == null || mGoogleApiClient == null) {
+            return;
+        }
+        double high = today.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        double low = today.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        int weatherId = today.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        Log.d(LOG_TAG, "High: " + high + ", Low: " + low + ", Weather ID: " + weatherId);
+        SunshineSyncAdapter.sendWatchfaceWeather(mGoogleApiClient, high, low, weatherId);
+    }
+
+    private void updateWidgets() {
+        Context context = mContext;
+        // Setting the package ensures that only components in our app will receive the broadcast
+        Intent dataUpdatedIntent = new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                .setPackage(context.getPackageName());
+        context.sendBroadcast(dataUpdatedIntent);
+    }
+
+    private void updateMuzei() {
+        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
+        // Muzei background on lower API level devices
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            Context context = mContext;
+            context.startService(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                    .setClass(context, WeatherMuzeiSource.class));
+        }
+    }
+
+    private boolean isNotificationDue() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        long lastNotification =
+                prefs.getLong(mContext.getString(R.string.pref_last_notification), 0);
+        return System.currentTimeMillis() - lastNotification >= DAY_IN_MILLIS;
+    }
+
+    private void notifyWeather() {
+        Context context = mContext;
+        //checking the last update and notify if it' the first of the day
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
+        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
+                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+
+        if ( displayNotifications ) {
+
+            String lastNotificationKey = context.getString(R.string.pref_last_notification);
+            long lastSync = prefs.getLong(lastNotificationKey, 0);
+
+            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
+                // Last sync was more than 1 day ago, let's send a notification with the weather.
+                String locationQuery = Utility.getPreferredLocation(context);
+
+                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+
+                // we'll query our contentProvider, as always
+                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+
+                if (cursor.moveToFirst()) {
+                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
+                    double high = cursor.getDouble(INDEX_MAX_TEMP);
+                    double low = cursor.getDouble(INDEX_MIN_TEMP);
+                    String desc = cursor.getString(INDEX_SHORT_DESC);
+
+                    // Never wait for the icon: if it isn't in memory yet, post without it and
+                    // update the notification once it has loaded.
+                    LargeIconCache iconCache = LargeIconCache.getInstance(context);
+                    iconCache.prewarm();
+                    Bitmap largeIcon = iconCache.get(weatherId);
+                    postWeatherNotification(weatherId, desc, high, low, largeIcon);
+                    if (largeIcon == null) {
+                        final int iconWeatherId = weatherId;
+                        final String iconDesc = desc;
+                        final double iconHigh = high;
+                        final double iconLow = low;
+                        iconCache.load(weatherId, new LargeIconCache.Callback() {
+                            @Override
+                            public void onIconLoaded(Bitmap icon) {
+                                if (icon != null) {
+                                    postWeatherNotification(iconWeatherId, iconDesc, iconHigh,
+                                            iconLow, icon);
+                                }
+                            }
+                        });
+                    }
+
+                    //refreshing last sync
+                    SharedPreferences.Editor editor = prefs.edit();
+                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                    editor.commit();
+                }
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Posts (or updates) the daily weather notification.  Updating it only alerts the user the
+     * first time.
+     *
+     * @param largeIcon the condition's art, or null to leave it out for now
+     */
+    private void postWeatherNotification(int weatherId, String desc, double high, double low,
+                                         Bitmap largeIcon) {
+        Context context = mContext;
+        int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+        Resources resources = context.getResources();
+        String title = context.getString(R.string.app_name);
+
+        // Define the text of the forecast.
+        String contentText = String.format(context.getString(R.string.format_notification),
+                desc,
+                Utility.formatTemperature(context, high),
+                Utility.formatTemperature(context, low));
+
+        // NotificationCompatBuilder is a very convenient way to build backward-compatible
+        // notifications.  Just throw in some data.
+        NotificationCompat.Builder mBuilder =
+                new NotificationCompat.Builder(context)
+                        .setColor(resources.getColor(R.color.primary_light))
+                        .setSmallIcon(iconId)
+                        .setLargeIcon(largeIcon)
+                        .setOnlyAlertOnce(true)
+                        .setContentTitle(title)
+                        .setContentText(contentText);
+
+        // Make something interesting happen when the user clicks on the notification.
+        // In this case, opening the app is sufficient.
+        Intent resultIntent = new Intent(context, MainActivity.class);
+
+        // The stack builder object will contain an artificial back stack for the
+        // started Activity.
+        // This ensures that navigating backward from the Activity leads out of
+        // your application to the Home screen.
+        TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+        stackBuilder.addNextIntent(resultIntent);
+        PendingIntent resultPendingIntent =
+                stackBuilder.getPendingIntent(
+                        0,
+                        PendingIntent.FLAG_UPDATE_CURRENT
+                );
+        mBuilder.setContentIntent(resultPendingIntent);
+
+        NotificationManager mNotificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+        mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+    }
+
+    private static ThreadPoolExecutor newConsumerExecutor() {
+        // Enough threads for every consumer; they're only kept while fan-outs are happening.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4,
+                CONSUMER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
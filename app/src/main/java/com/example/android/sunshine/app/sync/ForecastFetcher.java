@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.util.Locale;
+
+/**
+ * Downloads and parses the forecast for one location.  Nothing here writes to the database, so
+ * several fetches can safely run at once; the sync adapter stores the results afterwards.
+ *
+ * This is the fetch stage of the {@link SyncPipeline}.  Parsing is part of it rather than a
+ * stage of its own because the parser reads straight from the network stream.
+ */
+class ForecastFetcher implements SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> {
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    static final String STAGE_NAME = "fetch";
+    static final String CACHE_STAGE_NAME = "cache";
+
+    // How many days of forecast to ask for, starting today, when bandwidth is no concern.
+    static final int FORECAST_DAYS = 14;
+
+    // The outcome of a fetch.
+    static final int RESULT_OK = 0;
+    static final int RESULT_NOT_MODIFIED = 1;
+    static final int RESULT_UNCHANGED = 2;
+    static final int RESULT_SERVER_DOWN = 3;
+    static final int RESULT_SERVER_INVALID = 4;
+    // Only when reading from the payload cache: nothing servable was cached.
+    static final int RESULT_NOT_CACHED = 5;
+    // The server didn't answer before a timeout or the stage's deadline.
+    static final int RESULT_TIMED_OUT = 6;
+    // The sync was cancelled while this was being fetched.
+    static final int RESULT_CANCELLED = 7;
+
+    /**
+     * What to fetch.  If a latitude and longitude are given they are used instead of the
+     * location setting, which OWM may not understand (e.g. a Place Picker address).
+     */
+    static class Request {
+        final String locationSetting;
+        final String latitude;
+        final String longitude;
+
+        Request(String locationSetting, String latitude, String longitude) {
+            this.locationSetting = locationSetting;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        boolean hasLatLon() {
+            return latitude != null && longitude != null;
+        }
+    }
+
+    static class Result {
+        final Request request;
+        int status;
+        OwmForecastParser.Forecast forecast;
+        ForecastValidators validators;
+        String payloadHash;
+        // True if the forecast came from the payload cache rather than the server.
+        boolean fromCache;
+
+        // Measurements for the sync metrics, in milliseconds.  Time to first byte runs from
+        // sending the request to getting the response headers; parsing includes reading the
+        // body, since the parser reads straight from the network.
+        long connectMillis;
+        long ttfbMillis;
+        long parseMillis;
+        long bytesRead;
+
+        Result(Request request) {
+            this.request = request;
+        }
+    }
+
+    private final Context mContext;
+    private final WeatherSource mSource;
+    private final ForecastPayloadCache mCache;
+    private final SyncDeadline mDeadline;
+    private final int mForecastDays;
+
+    /**
+     * Makes a fetcher that asks for FORECAST_DAYS, and whose fetches only stop at the connection
+     * timeouts.
+     */
+    ForecastFetcher(Context context, WeatherSource source, ForecastPayloadCache cache) {
+        this(context, source, cache, SyncDeadline.none(), FORECAST_DAYS);
+    }
+
+    /**
+     * @param source the server to fetch from; cached payloads are read with its parser too
+     * @param cache where full responses are kept and 304s are recorded; may be null
+     * @param deadline when fetches have to give up, and how they learn the sync was cancelled
+     * @param forecastDays how many days to ask for, see {@link NetworkPolicy#getForecastDays()}
+     */
+    ForecastFetcher(Context context, WeatherSource source, ForecastPayloadCache cache,
+                    SyncDeadline deadline, int forecastDays) {
+        mContext = context;
+        mSource = source;
+        mCache = cache;
+        mDeadline = deadline;
+        mForecastDays = forecastDays;
+    }
+
+    @Override
+    public String getName() {
+        return STAGE_NAME;
+    }
+
+    @Override
+    public Result process(Request request) {
+        return fetch(request);
+    }
+
+    /**
+     * @return a stage that reads forecasts from the payload cache only, never the network
+     */
+    SyncStage<Request, Result> cacheOnly() {
+        return new SyncStage<Request, Result>() {
+            @Override
+            public String getName() {
+                return CACHE_STAGE_NAME;
+            }
+
+            @Override
+            public Result process(Request request) {
+                return loadFromCache(request);
+            }
+        };
+    }
+
+    /**
+     * Parses the cached payload for a request.  Validators aren't touched, since the payload
+     * may not be what the server would send now.
+     */
+    Result loadFromCache(Request request) {
+        Result result = new Result(request);
+        result.status = RESULT_NOT_CACHED;
+        InputStream inputStream = mCache == null ? null : mCache.open(getCacheKey(request));
+        if (inputStream == null) {
+            return result;
+        }
+        try {
+            result.forecast = mSource.parse(inputStream);
+            result.fromCache = true;
+            result.status = RESULT_OK;
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, "Error reading cached forecast for " + request.locationSetting, e);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (final IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+        }
+        return result;
+    }
+
+    Result fetch(Request request) {
+        Result result = new Result(request);
+
+        // These two need to be declared outside the try/catch
+        // so that they can be closed in the finally block.
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        CountingInputStream countingStream = null;
+        ForecastPayloadCache.Editor cacheEditor = null;
+        boolean cacheable = false;
+
+        try {
+            String validatorKey = getCacheKey(request);
+            URL url = mSource.getForecastUrl(request, mForecastDays);
+
+            // Create the request to the weather server, and open the connection
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            mDeadline.watch(urlConnection);
+
+            // Only ask the server whether anything changed if we still have the data the
+            // validators describe.  If the database was wiped we need the full response again.
+            result.validators = ForecastValidators.load(mContext, validatorKey);
+            boolean haveStoredForecast = hasStoredForecast(request.locationSetting);
+            if (haveStoredForecast) {
+                result.validators.applyTo(urlConnection);
+            }
+            long requestStart = SystemClock.elapsedRealtime();
+            urlConnection.connect();
+            result.connectMillis = SystemClock.elapsedRealtime() - requestStart;
+            int responseCode = urlConnection.getResponseCode();
+            result.ttfbMillis = SystemClock.elapsedRealtime() - requestStart;
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Nothing changed upstream, so there's nothing to parse, store or fan out.
+                result.status = RESULT_NOT_MODIFIED;
+                if (mCache != null) {
+                    mCache.revalidate(validatorKey);
+                }
+                return result;
+            }
+            result.validators.readFrom(urlConnection);
+
+            // Hand the input stream straight to the parser.  We never hold the raw JSON as a
+            // String, so peak memory no longer scales with the size of the response.
+            inputStream = urlConnection.getInputStream();
+            if (inputStream == null) {
+                // Nothing to do.
+                result.status = RESULT_SERVER_DOWN;
+                return result;
+            }
+            countingStream = new CountingInputStream(mDeadline.wrap(inputStream));
+            InputStream bodyStream = countingStream;
+            if (mCache != null) {
+                // Copy the payload into the cache as it's parsed.
+                cacheEditor = mCache.edit(validatorKey);
+                bodyStream = cacheEditor.tee(countingStream);
+            }
+            DigestInputStream digestStream = ForecastValidators.newDigestStream(bodyStream);
+            long parseStart = SystemClock.elapsedRealtime();
+            result.forecast = mSource.parse(digestStream);
+            result.parseMillis = SystemClock.elapsedRealtime() - parseStart;
+            result.payloadHash = ForecastValidators.finishDigest(digestStream);
+
+            // Only keep payloads we could show: not errors like "city not found".
+            result.status = RESULT_OK;
+            cacheable = ForecastTransformer.getLocationStatusForResult(result)
+                    == SunshineSyncAdapter.LOCATION_STATUS_OK;
+
+            if (haveStoredForecast && result.payloadHash.equals(result.validators.payloadHash)) {
+                // The server doesn't support conditional requests (or ignored ours) but sent us
+                // exactly what we stored last time.  Treat it like a 304.
+                result.status = RESULT_UNCHANGED;
+                return result;
+            }
+        } catch (IOException e) {
+            // Cancelling disconnects the socket, which shows up as whatever error the read hit.
+            if (mDeadline.isCancelled()) {
+                Log.d(LOG_TAG, "Fetch for " + request.locationSetting + " cancelled");
+                result.status = RESULT_CANCELLED;
+            } else if (e instanceof SocketTimeoutException || mDeadline.isExpired()) {
+                Log.d(LOG_TAG, "Fetch for " + request.locationSetting + " timed out: "
+                        + e.getMessage());
+                result.status = RESULT_TIMED_OUT;
+            } else {
+                Log.e(LOG_TAG, "Error ", e);
+                // If the code didn't successfully get the weather data, there's no point in
+                // attempting to parse it.
+                result.status = RESULT_SERVER_DOWN;
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            result.status = RESULT_SERVER_INVALID;
+        } finally {
+            if (cacheEditor != null) {
+                if (cacheable) {
+                    cacheEditor.commit();
+                } else {
+                    cacheEditor.abort();
+                }
+            }
+            if (countingStream != null) {
+                result.bytesRead = countingStream.getCount();
+            }
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (urlConnection != null) {
+                mDeadline.release(urlConnection);
+                urlConnection.disconnect();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the key that identifies a request's location, e.g. in the sync journal.  It is
+     * built from what we send the server, so two settings that make the same request share it.
+     */
+    static String getLocationKey(Request request) {
+        if (request.hasLatLon()) {
+            return "lat" + request.latitude + "lon" + request.longitude;
+        }
+        return "q" + request.locationSetting.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * @return the key a request's validators and cached payload are stored under.  A response
+     * only covers the days it was asked for, so each day count has its own: a short metered
+     * forecast is never served, or revalidated, in place of a full one.
+     */
+    String getCacheKey(Request request) {
+        return getLocationKey(request) + "days" + mForecastDays;
+    }
+
+    /**
+     * Checks whether we still have a forecast from today onwards for a location.  Conditional
+     * requests are only safe when we do, otherwise a 304 would leave the user with nothing.
+     */
+    boolean hasStoredForecast(String locationSetting) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = mContext.getContentResolver().query(weatherUri,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE}, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, for the sync metrics.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mCount += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
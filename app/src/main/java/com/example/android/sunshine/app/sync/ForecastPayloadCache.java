@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the raw forecast responses we got recently, gzipped, in the app's cache directory.  It
+ * lets the sync adapter show a location the database has nothing for (e.g. the user just
+ * switched back to it) before the network answers.
+ *
+ * An entry is served for TTL_MILLIS and only on the local day it was stored, because the days in
+ * a payload are dated relative to "today" when they are stored.  The directory is kept under
+ * MAX_CACHE_BYTES by evicting the least recently used entries.
+ *
+ * Each file holds a small header (format version, the key, when it was stored) followed by the
+ * payload exactly as the server sent it, all gzipped.
+ */
+class ForecastPayloadCache {
+    private static final String LOG_TAG = ForecastPayloadCache.class.getSimpleName();
+
+    static final String CACHE_DIR_NAME = "forecast_cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int FORMAT_VERSION = 1;
+
+    // How long a stored payload may be served for.
+    static final long TTL_MILLIS = 6 * 60 * 60 * 1000;
+    // How much of cacheDir the entries may use between them.
+    static final long MAX_CACHE_BYTES = 256 * 1024;
+
+    // Eviction lists and deletes files, so only one thread does it at a time.
+    private static final Object sEvictionLock = new Object();
+
+    private final File mDir;
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    ForecastPayloadCache(Context context) {
+        mDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+    }
+
+    /**
+     * Opens the payload stored for a key, if there is one that may still be served.  The caller
+     * must close the stream.
+     *
+     * @return the payload, or null on a miss
+     */
+    InputStream open(String key) {
+        InputStream in = openEntry(key);
+        if (in == null) {
+            mMisses.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return in;
+    }
+
+    private InputStream openEntry(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new GZIPInputStream(
+                    new BufferedInputStream(new FileInputStream(file))));
+            if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                // Written by an older version, or another key with the same file name.
+                throw new IOException("Unusable cache entry for " + key);
+            }
+            if (!isServable(in.readLong(), System.currentTimeMillis())) {
+                in.close();
+                file.delete();
+                return null;
+            }
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Dropping cache entry for " + key + ": " + e.getMessage());
+            closeQuietly(in);
+            file.delete();
+            return null;
+        }
+
+        // Eviction goes by modification time, so touching the file makes it most recently used.
+        file.setLastModified(System.currentTimeMillis());
+        return in;
+    }
+
+    /**
+     * Starts a new entry for a key.  Nothing replaces the current entry until
+     * {@link Editor#commit()} is called.
+     */
+    Editor edit(String key) {
+        return new Editor(key);
+    }
+
+    /**
+     * Marks the entry for a key as fresh again, e.g. after the server answered 304 Not Modified.
+     */
+    void revalidate(String key) {
+        InputStream in = openEntry(key);
+        if (in == null) {
+            return;
+        }
+        Editor editor = edit(key);
+        try {
+            InputStream tee = editor.tee(in);
+            byte[] buffer = new byte[1024];
+            while (tee.read(buffer) != -1) {
+                // keep reading
+            }
+            editor.commit();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error revalidating cache entry for " + key, e);
+        } finally {
+            editor.abort();
+            closeQuietly(in);
+        }
+    }
+
+    int getHits() {
+        return mHits.get();
+    }
+
+    int getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return how many bytes the entries take up on disk
+     */
+    long getSize() {
+        long size = 0;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private File getFile(String key) {
+        return new File(mDir, Integer.toHexString(key.hashCode()));
+    }
+
+    /**
+     * @return true if an entry stored at storedAt may be served at now: within TTL_MILLIS, and
+     * on the same local day
+     */
+    static boolean isServable(long storedAt, long now) {
+        if (now - storedAt < 0 || now - storedAt >= TTL_MILLIS) {
+            return false;
+        }
+        Time time = new Time();
+        time.set(now);
+        return Time.getJulianDay(storedAt, time.gmtoff) == Time.getJulianDay(now, time.gmtoff);
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in MAX_CACHE_BYTES.
+     */
+    private void trimToSize() {
+        synchronized (sEvictionLock) {
+            File[] files = mDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            long size = 0;
+            for (File file : files) {
+                size += file.length();
+            }
+            if (size <= MAX_CACHE_BYTES) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long lhsModified = lhs.lastModified();
+                    long rhsModified = rhs.lastModified();
+                    return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < files.length && size > MAX_CACHE_BYTES; i++) {
+                if (files[i].getName().endsWith(TEMP_SUFFIX)) {
+                    // Still being written.
+                    continue;
+                }
+                long length = files[i].length();
+                if (files[i].delete()) {
+                    size -= length;
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * Writes one entry.  The payload is copied in as it is read by the parser, so it's never held
+     * in memory, and the entry only appears once it's complete.
+     */
+    class Editor {
+        private final String mKey;
+        private final File mTempFile;
+        private DataOutputStream mOut;
+        private boolean mFailed;
+        private boolean mDone;
+
+        private Editor(String key) {
+            mKey = key;
+            mTempFile = new File(mDir, getFile(key).getName() + TEMP_SUFFIX);
+        }
+
+        /**
+         * Wraps a payload stream so that everything read from it also goes into the entry.  A
+         * cache that can't be written never gets in the way of the read itself.
+         */
+        InputStream tee(InputStream source) {
+            try {
+                if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                    throw new IOException("Can't create " + mDir);
+                }
+                mOut = new DataOutputStream(new GZIPOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(mTempFile))));
+                mOut.writeInt(FORMAT_VERSION);
+                mOut.writeUTF(mKey);
+                mOut.writeLong(System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error creating cache entry for " + mKey, e);
+                mFailed = true;
+            }
+            return new FilterInputStream(source) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        write(buffer, offset, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long byteCount) throws IOException {
+                    // Skipped bytes would be missing from the entry, so read them instead.
+                    byte[] buffer = new byte[(int) Math.min(byteCount, 1024)];
+                    int read = read(buffer, 0, buffer.length);
+                    return Math.max(read, 0);
+                }
+            };
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mFailed || mOut == null) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error writing cache entry for " + mKey, e);
+                mFailed = true;
+            }
+        }
+
+        /**
+         * Replaces the key's entry with what was read through {@link #tee(InputStream)}.
+         */
+        void commit() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            if (mFailed || mOut == null) {
+                discard();
+                return;
+            }
+            try {
+                mOut.close();
+                if (!mTempFile.renameTo(getFile(mKey))) {
+                    throw new IOException("Can't rename " + mTempFile);
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error committing cache entry for " + mKey, e);
+                mTempFile.delete();
+                return;
+            }
+            trimToSize();
+        }
+
+        /**
+         * Throws the entry away.  Does nothing if it has already been committed.
+         */
+        void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            discard();
+        }
+
+        private void discard() {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    // it's going anyway
+                }
+            }
+            mTempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persist stage of the {@link SyncPipeline}: replaces every fetched location's forecast and trims
+ * days that are over in a single provider call, which is one transaction and one notification,
+ * and then saves the validators that describe what was stored.  Nothing slow happens here, so
+ * the database is only busy for as long as the writes take.
+ */
+class ForecastPersister
+        implements SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted> {
+    private static final String LOG_TAG = ForecastPersister.class.getSimpleName();
+
+    static final String STAGE_NAME = "persist";
+
+    /**
+     * What the upsert and the trim did.
+     */
+    static class Persisted {
+        int rows;
+        int inserted;
+        int updated;
+        int unchanged;
+        int significantChanges;
+        int deleted;
+    }
+
+    private final Context mContext;
+    // Rows dated on or before this are deleted.
+    private final long mTrimDate;
+
+    /**
+     * @param trimDate rows dated on or before this are deleted, so we don't build up an endless
+     *                 history
+     */
+    ForecastPersister(Context context, long trimDate) {
+        mContext = context;
+        mTrimDate = trimDate;
+    }
+
+    @Override
+    public String getName() {
+        return STAGE_NAME;
+    }
+
+    @Override
+    public Persisted process(List<ForecastTransformer.Transformed> forecasts) {
+        Persisted persisted = new Persisted();
+
+        List<ContentValues> cVList = new ArrayList<ContentValues>();
+        for (ForecastTransformer.Transformed forecast : forecasts) {
+            cVList.addAll(forecast.rows);
+        }
+        persisted.rows = cVList.size();
+
+        // add to database.  This happens even with no rows (every fetch came back 304), so the
+        // days that are over still get trimmed.
+        ContentValues[] cvArray = new ContentValues[cVList.size()];
+        cVList.toArray(cvArray);
+
+        // Only rows that actually changed are written, and observers only hear about it if
+        // something was.  Each location's forecast is replaced, so days it wasn't sent this time
+        // go, and old data goes in the same transaction, so we don't build up an endless
+        // history and nobody sees the new days before the old ones are gone.
+        Bundle replaceExtras = new Bundle();
+        replaceExtras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_VALUES, cvArray);
+        replaceExtras.putLong(WeatherContract.WeatherEntry.EXTRA_TRIM_DATE, mTrimDate);
+        Bundle counts = mContext.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_REPLACE_FORECAST, null, replaceExtras);
+        persisted.inserted = counts.getInt(WeatherContract.WeatherEntry.EXTRA_INSERTED);
+        persisted.updated = counts.getInt(WeatherContract.WeatherEntry.EXTRA_UPDATED);
+        persisted.unchanged = counts.getInt(WeatherContract.WeatherEntry.EXTRA_UNCHANGED);
+        persisted.significantChanges =
+                counts.getInt(WeatherContract.WeatherEntry.EXTRA_SIGNIFICANT_CHANGES);
+        persisted.deleted = counts.getInt(WeatherContract.WeatherEntry.EXTRA_DELETED);
+        Log.d(LOG_TAG, "Replaced forecast: " + persisted.inserted + " inserted, "
+                + persisted.updated + " updated, " + persisted.unchanged + " unchanged, "
+                + persisted.deleted + " deleted");
+
+        // The validators are only saved once the data they describe is safely stored, so a
+        // failed write never turns into a 304 later.
+        for (ForecastTransformer.Transformed forecast : forecasts) {
+            if (forecast.saveValidators) {
+                forecast.result.validators.save(mContext);
+            }
+            // A cached forecast is something to show, not proof that we're up to date.
+            if (forecast.locationStatus == SunshineSyncAdapter.LOCATION_STATUS_OK
+                    && !forecast.result.fromCache) {
+                SyncRequestCoordinator.recordSuccessfulSync(mContext,
+                        forecast.result.request.locationSetting);
+            }
+        }
+        return persisted;
+    }
+}
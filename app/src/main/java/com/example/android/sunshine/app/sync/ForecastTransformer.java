@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transform stage of the {@link SyncPipeline}: works out the location status for a fetch and
+ * turns the parsed days into weather rows, dated and keyed by location, ready to be stored.
+ */
+class ForecastTransformer
+        implements SyncStage<ForecastFetcher.Result, ForecastTransformer.Transformed> {
+    private static final String LOG_TAG = ForecastTransformer.class.getSimpleName();
+
+    static final String STAGE_NAME = "transform";
+
+    /**
+     * A fetch result along with the rows to store for it.
+     */
+    static class Transformed {
+        final ForecastFetcher.Result result;
+        final @SunshineSyncAdapter.LocationStatus int locationStatus;
+        // Empty when there is nothing to store.
+        final List<ContentValues> rows;
+        // True if the validators should be saved once the rows are stored.
+        final boolean saveValidators;
+        // Today's row, or null if there isn't one, e.g. because today was quarantined.
+        final ContentValues today;
+
+        Transformed(ForecastFetcher.Result result,
+                    @SunshineSyncAdapter.LocationStatus int locationStatus,
+                    List<ContentValues> rows, boolean saveValidators) {
+            this(result, locationStatus, rows, saveValidators, rows.isEmpty() ? null : rows.get(0));
+        }
+
+        Transformed(ForecastFetcher.Result result,
+                    @SunshineSyncAdapter.LocationStatus int locationStatus,
+                    List<ContentValues> rows, boolean saveValidators, ContentValues today) {
+            this.result = result;
+            this.locationStatus = locationStatus;
+            this.rows = rows;
+            this.saveValidators = saveValidators;
+            this.today = today;
+        }
+    }
+
+    private final Context mContext;
+    private final int mJulianStartDay;
+    private final Time mDayTime;
+
+    ForecastTransformer(Context context) {
+        mContext = context;
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        mJulianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        // now we work exclusively in UTC
+        mDayTime = new Time();
+    }
+
+    @Override
+    public String getName() {
+        return STAGE_NAME;
+    }
+
+    @Override
+    public Transformed process(ForecastFetcher.Result result) {
+        @SunshineSyncAdapter.LocationStatus int status = getLocationStatusForResult(result);
+
+        if (result.status == ForecastFetcher.RESULT_UNCHANGED) {
+            // Nothing to store, but the server may have sent new validators.
+            return new Transformed(result, status, Collections.<ContentValues>emptyList(), true);
+        }
+        if (result.status != ForecastFetcher.RESULT_OK
+                || status != SunshineSyncAdapter.LOCATION_STATUS_OK) {
+            return new Transformed(result, status, Collections.<ContentValues>emptyList(), false);
+        }
+
+        OwmForecastParser.Forecast forecast = result.forecast;
+        if (!forecast.quarantined.isEmpty()) {
+            Log.w(LOG_TAG, "Quarantined " + forecast.quarantined.size() + " of "
+                    + forecast.days.size() + " days for " + result.request.locationSetting
+                    + ": " + forecast.quarantined);
+        }
+        if (!result.fromCache) {
+            ValidationCounters.record(mContext, forecast);
+        }
+
+        long locationId = addLocation(result.request.locationSetting, forecast.cityName,
+                forecast.cityLatitude, forecast.cityLongitude);
+
+        List<ContentValues> rows = new ArrayList<ContentValues>(forecast.getValidDayCount());
+        for (int i = 0; i < forecast.days.size(); i++) {
+            ContentValues weatherValues = forecast.days.get(i);
+            if (weatherValues == null) {
+                // Quarantined.  Whatever we already have for that day stays as it is.
+                continue;
+            }
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = getDate(i);
+
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+            rows.add(weatherValues);
+        }
+        ContentValues today = forecast.days.isEmpty() ? null : forecast.days.get(0);
+        if (result.fromCache) {
+            // Validators describe what the server last sent, which this may not be.
+            return new Transformed(result, status, rows, false, today);
+        }
+        // Saved even if days were quarantined: the server would only send the same ones again.
+        result.validators.payloadHash = result.payloadHash;
+        return new Transformed(result, status, rows, true, today);
+    }
+
+    /**
+     * @return the UTC date of the day this many days after today
+     */
+    long getDate(int dayOffset) {
+        synchronized (mDayTime) {
+            return mDayTime.setJulianDay(mJulianStartDay + dayOffset);
+        }
+    }
+
+    /**
+     * Works out what the location status should be after a fetch.
+     */
+    static @SunshineSyncAdapter.LocationStatus int getLocationStatusForResult(
+            ForecastFetcher.Result result) {
+        switch (result.status) {
+            case ForecastFetcher.RESULT_NOT_MODIFIED:
+            case ForecastFetcher.RESULT_UNCHANGED:
+                return SunshineSyncAdapter.LOCATION_STATUS_OK;
+            case ForecastFetcher.RESULT_SERVER_INVALID:
+                return SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+            case ForecastFetcher.RESULT_TIMED_OUT:
+                return SunshineSyncAdapter.LOCATION_STATUS_TIMEOUT;
+            case ForecastFetcher.RESULT_CANCELLED:
+                // We never heard from the server, so we know no more than before.
+                return SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+            case ForecastFetcher.RESULT_OK:
+                break;
+            default:
+                return SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        }
+
+        // do we have an error?
+        switch (result.forecast.messageCode) {
+            case OwmForecastParser.NO_MESSAGE_CODE:
+            case HttpURLConnection.HTTP_OK:
+                // Some bad days are fine, but a forecast with none worth keeping isn't one.
+                OwmForecastParser.Forecast forecast = result.forecast;
+                boolean hasDays = forecast.days.isEmpty() || forecast.getValidDayCount() > 0;
+                return forecast.hasCity() && hasDays
+                        ? SunshineSyncAdapter.LOCATION_STATUS_OK
+                        : SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+            default:
+                return SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        }
+    }
+
+    /**
+     * Helper method to handle insertion of a new location in the weather database.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param cityName A human-readable city name, e.g "Mountain View"
+     * @param lat the latitude of the city
+     * @param lon the longitude of the city
+     * @return the row ID of the added location.
+     */
+    long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        // Usually already known, in which case this doesn't touch the provider at all.
+        return LocationRegistry.getInstance(mContext)
+                .getOrInsert(locationSetting, cityName, lat, lon);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The cache validators we got back the last time a forecast for a location was stored: the
+ * ETag and Last-Modified headers, plus a hash of the payload for servers that send neither.
+ * They let the sync adapter make conditional requests and skip all the work after a 304 or a
+ * response identical to the one we already have.
+ */
+class ForecastValidators {
+
+    // Validators are kept in their own preferences file, keyed by location, so they don't
+    // clutter the user's settings.
+    private static final String PREFS_NAME = "forecast_validators";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_PAYLOAD_HASH = "payload_hash";
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String DIGEST_ALGORITHM = "MD5";
+
+    final String locationKey;
+    String etag;
+    String lastModified;
+    String payloadHash;
+
+    private ForecastValidators(String locationKey) {
+        this.locationKey = locationKey;
+    }
+
+    /**
+     * Loads the validators stored for a location.
+     *
+     * @param locationKey identifies the request, e.g. the query string or the lat/lon pair sent
+     *                    to the server
+     */
+    static ForecastValidators load(Context context, String locationKey) {
+        SharedPreferences prefs = getPreferences(context);
+        ForecastValidators validators = new ForecastValidators(locationKey);
+        validators.etag = prefs.getString(prefKey(locationKey, KEY_ETAG), null);
+        validators.lastModified = prefs.getString(prefKey(locationKey, KEY_LAST_MODIFIED), null);
+        validators.payloadHash = prefs.getString(prefKey(locationKey, KEY_PAYLOAD_HASH), null);
+        return validators;
+    }
+
+    /**
+     * Forgets the validators for a location, so the next request is unconditional.
+     */
+    static void clear(Context context, String locationKey) {
+        getPreferences(context).edit()
+                .remove(prefKey(locationKey, KEY_ETAG))
+                .remove(prefKey(locationKey, KEY_LAST_MODIFIED))
+                .remove(prefKey(locationKey, KEY_PAYLOAD_HASH))
+                .apply();
+    }
+
+    /**
+     * Adds the conditional request headers.  Must be called before the connection is opened.
+     */
+    void applyTo(HttpURLConnection urlConnection) {
+        if (etag != null) {
+            urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Remembers the validators the server sent with a full response.  They are only saved once
+     * {@link #save(Context)} is called, which should wait until the data is safely stored.
+     */
+    void readFrom(HttpURLConnection urlConnection) {
+        etag = urlConnection.getHeaderField(HEADER_ETAG);
+        lastModified = urlConnection.getHeaderField(HEADER_LAST_MODIFIED);
+    }
+
+    boolean isConditional() {
+        return etag != null || lastModified != null;
+    }
+
+    void save(Context context) {
+        getPreferences(context).edit()
+                .putString(prefKey(locationKey, KEY_ETAG), etag)
+                .putString(prefKey(locationKey, KEY_LAST_MODIFIED), lastModified)
+                .putString(prefKey(locationKey, KEY_PAYLOAD_HASH), payloadHash)
+                .apply();
+    }
+
+    /**
+     * Wraps a response stream so the payload is hashed as it is read.
+     */
+    static DigestInputStream newDigestStream(InputStream in) {
+        try {
+            return new DigestInputStream(in, MessageDigest.getInstance(DIGEST_ALGORITHM));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device ships MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads whatever the parser left behind (usually trailing whitespace) so the hash covers the
+     * whole payload, then returns the hash as a hex string.
+     */
+    static String finishDigest(DigestInputStream in) throws IOException {
+        byte[] skipBuffer = new byte[256];
+        while (in.read(skipBuffer) != -1) {
+            // keep reading
+        }
+        byte[] digest = in.getMessageDigest().digest();
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String prefKey(String locationKey, String field) {
+        return locationKey + "|" + field;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloads a location's 3 hour step forecast and stores it in the hourly table while it is
+ * still being read: steps are written in batches of BATCH_SIZE as the parser hands them over, so
+ * neither the payload nor the full set of rows is ever held in memory.
+ *
+ * Only locations the daily forecast has already stored are ingested, since the steps are keyed
+ * by the location row the daily forecast created.
+ *
+ * A fetch cut short by the deadline or a cancelled sync needs no rolling back: every batch
+ * written is made of whole steps that replace the same steps from an older forecast, so the
+ * table holds a complete, if partly older, forecast either way.
+ */
+class HourlyForecastIngester {
+    private static final String LOG_TAG = HourlyForecastIngester.class.getSimpleName();
+
+    // OWM's 3 hour forecast covers 5 days.
+    static final int STEP_COUNT = 5 * 8;
+    // Steps written per transaction.
+    static final int BATCH_SIZE = 16;
+
+    private final Context mContext;
+    private final WeatherSource mSource;
+    private final SyncDeadline mDeadline;
+
+    /**
+     * @param deadline when fetches have to give up, and how they learn the sync was cancelled
+     */
+    HourlyForecastIngester(Context context, WeatherSource source, SyncDeadline deadline) {
+        mContext = context;
+        mSource = source;
+        mDeadline = deadline;
+    }
+
+    /**
+     * Fetches and stores the hourly forecast for one location, then deletes its steps that are
+     * over.  Observers of the hourly table hear about it once, when the location is done.
+     *
+     * @return how many steps were stored, or -1 if the fetch failed
+     */
+    int ingest(ForecastFetcher.Request request) {
+        final long locationId = getLocationId(request.locationSetting);
+        if (locationId == -1) {
+            return 0;
+        }
+
+        int[] stored = new int[1];
+        boolean fetched = fetch(request, locationId, stored);
+        int deleted = 0;
+        if (fetched) {
+            // The step that's under way stays; everything before it goes.
+            deleted = mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI,
+                    HourlyEntry.COLUMN_LOC_KEY + " = ? AND "
+                            + HourlyEntry.COLUMN_TIMESTAMP + " < ?",
+                    new String[]{Long.toString(locationId),
+                            Long.toString(System.currentTimeMillis() - HourlyEntry.STEP_MILLIS)});
+        }
+        if (stored[0] > 0 && deleted == 0) {
+            // The batches were stored quietly, and the delete, which would have told observers,
+            // didn't happen or had nothing to do.
+            mContext.getContentResolver().notifyChange(HourlyEntry.CONTENT_URI, null);
+        }
+        return fetched ? stored[0] : -1;
+    }
+
+    /**
+     * Streams one location's steps into the hourly table without notifying observers.
+     *
+     * @param stored where the number of steps stored is added, including when the fetch fails
+     *               part way through
+     * @return true if the whole forecast was fetched
+     */
+    private boolean fetch(ForecastFetcher.Request request, final long locationId,
+                          final int[] stored) {
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        final List<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+        try {
+            urlConnection = (HttpURLConnection) mSource.getHourlyForecastUrl(request, STEP_COUNT)
+                    .openConnection();
+            urlConnection.setRequestMethod("GET");
+            mDeadline.watch(urlConnection);
+            urlConnection.connect();
+            if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.d(LOG_TAG, "Hourly forecast for " + request.locationSetting + " failed: "
+                        + urlConnection.getResponseCode());
+                return false;
+            }
+            inputStream = urlConnection.getInputStream();
+
+            InputStream bodyStream = mDeadline.wrap(inputStream);
+            int messageCode = mSource.parseHourly(bodyStream, new OwmHourlyParser.StepHandler() {
+                @Override
+                public void onStep(ContentValues step) {
+                    step.put(HourlyEntry.COLUMN_LOC_KEY, locationId);
+                    batch.add(step);
+                    if (batch.size() == BATCH_SIZE) {
+                        stored[0] += flush(batch);
+                    }
+                }
+            });
+            stored[0] += flush(batch);
+            if (messageCode != OwmForecastParser.NO_MESSAGE_CODE
+                    && messageCode != HttpURLConnection.HTTP_OK) {
+                Log.d(LOG_TAG, "Hourly forecast for " + request.locationSetting
+                        + " came back with " + messageCode);
+                return false;
+            }
+        } catch (IOException e) {
+            if (mDeadline.shouldStop() || e instanceof SocketTimeoutException) {
+                Log.d(LOG_TAG, "Hourly forecast for " + request.locationSetting
+                        + " stopped early: " + e.getMessage());
+            } else {
+                Log.e(LOG_TAG, "Error ", e);
+            }
+            return false;
+        } catch (JSONException e) {
+            // Whatever was stored before the bad step is still good.
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return false;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (urlConnection != null) {
+                mDeadline.release(urlConnection);
+                urlConnection.disconnect();
+            }
+        }
+        return true;
+    }
+
+    private int flush(List<ContentValues> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        ContentValues[] values = batch.toArray(new ContentValues[batch.size()]);
+        batch.clear();
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(HourlyEntry.EXTRA_VALUES, values);
+        Bundle result = mContext.getContentResolver().call(HourlyEntry.CONTENT_URI,
+                HourlyEntry.METHOD_INSERT_QUIETLY, null, extras);
+        return result.getInt(HourlyEntry.EXTRA_INSERTED);
+    }
+
+    private long getLocationId(String locationSetting) {
+        return LocationRegistry.getInstance(mContext).getId(locationSetting);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.bumptech.glide.Glide;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the notification's large icon for every weather condition, already scaled to the
+ * notification's large icon size.  Icons are downloaded and decoded on a background thread,
+ * ahead of time with {@link #prewarm()}, so posting a notification only ever takes one from
+ * memory.
+ *
+ * The icons come from the art pack, so the cache is refilled whenever the art pack changes.  It
+ * is bounded to MAX_BYTES, which holds every condition at the usual icon sizes.  Art packs are
+ * downloaded, so nothing is prefetched on a metered network; icons are then loaded one at a time
+ * as notifications need them.
+ */
+public class LargeIconCache {
+    private static final String LOG_TAG = LargeIconCache.class.getSimpleName();
+
+    // One weather id for each art category Utility maps ids to.
+    private static final int[] CATEGORY_WEATHER_IDS = {200, 300, 500, 600, 701, 800, 801, 802};
+
+    // Eight categories at 64dp on an xxxhdpi screen take about 2.4MB.
+    private static final int MAX_BYTES = 3 * 1024 * 1024;
+
+    /**
+     * Hears that an icon was loaded, on the loading thread.
+     */
+    interface Callback {
+        /**
+         * @param icon the icon, or null if it couldn't be loaded at all
+         */
+        void onIconLoaded(Bitmap icon);
+    }
+
+    private static LargeIconCache sInstance;
+
+    private final Context mContext;
+    private final int mWidth;
+    private final int mHeight;
+    private final LruCache<String, Bitmap> mIcons;
+    // One thread, so a prewarm and a single load never fetch the same icon at once.
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor();
+    // The art pack a prewarm is queued or running for, if any; guarded by this.
+    private String mPrewarmingArtPack;
+    // The art pack the cache was last filled from; loader thread only.
+    private String mLoadedArtPack;
+
+    public static synchronized LargeIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LargeIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LargeIconCache(Context context) {
+        mContext = context;
+
+        // On Honeycomb and higher devices, we can retrieve the size of the large icon
+        // Prior to that, we use a fixed size
+        Resources resources = context.getResources();
+        @SuppressLint("InlinedApi")
+        int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+        @SuppressLint("InlinedApi")
+        int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+        mWidth = largeIconWidth;
+        mHeight = largeIconHeight;
+
+        mIcons = new LruCache<String, Bitmap>(MAX_BYTES) {
+            @Override
+            protected int sizeOf(String key, Bitmap icon) {
+                return icon.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * @return the icon for a condition in the current art pack, or null if it isn't loaded yet.
+     * Never blocks.
+     */
+    Bitmap get(int weatherId) {
+        return mIcons.get(getKey(weatherId));
+    }
+
+    /**
+     * Loads the icon for every condition in the current art pack in the background, unless
+     * they are all in memory already.  Icons that couldn't be downloaded, or have since been
+     * evicted, are tried again by the next prewarm.
+     */
+    public void prewarm() {
+        final String artPack = Utility.getArtPack(mContext);
+        if (!NetworkPolicy.forActiveNetwork(mContext).shouldPrefetchArt()) {
+            // Left for a prewarm on an unmetered network.
+            return;
+        }
+        synchronized (this) {
+            if (artPack.equals(mPrewarmingArtPack) || hasAllIcons()) {
+                return;
+            }
+            mPrewarmingArtPack = artPack;
+        }
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!artPack.equals(mLoadedArtPack)) {
+                        // Icons from the previous pack won't be asked for again.
+                        mIcons.evictAll();
+                        mLoadedArtPack = artPack;
+                    }
+                    for (int weatherId : CATEGORY_WEATHER_IDS) {
+                        loadIcon(weatherId);
+                    }
+                    Log.d(LOG_TAG, "Large icons for " + artPack + ": " + mIcons.size() / 1024
+                            + "KB, " + (hasAllIcons() ? "complete" : "incomplete"));
+                } finally {
+                    synchronized (LargeIconCache.this) {
+                        mPrewarmingArtPack = null;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the icon for one condition in the background, unless it's already in memory.
+     */
+    void load(final int weatherId, final Callback callback) {
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onIconLoaded(loadIcon(weatherId));
+            }
+        });
+    }
+
+    private boolean hasAllIcons() {
+        for (int weatherId : CATEGORY_WEATHER_IDS) {
+            if (mIcons.get(getKey(weatherId)) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs on the loader thread only.
+    private Bitmap loadIcon(int weatherId) {
+        String key = getKey(weatherId);
+        Bitmap icon = mIcons.get(key);
+        if (icon != null) {
+            return icon;
+        }
+
+        String artUrl = Utility.getArtUrlForWeatherCondition(mContext, weatherId);
+        int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+        try {
+            icon = Glide.with(mContext)
+                    .load(artUrl)
+                    .asBitmap()
+                    .error(artResourceId)
+                    .fitCenter()
+                    .into(mWidth, mHeight).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+            // Good enough for this notification, but not kept, so the art is tried again.
+            Bitmap fallback = loadResourceIcon(artResourceId);
+            if (artUrl != null) {
+                return fallback;
+            }
+            icon = fallback;
+        }
+        if (icon != null) {
+            mIcons.put(key, icon);
+        }
+        return icon;
+    }
+
+    private Bitmap loadResourceIcon(int artResourceId) {
+        if (artResourceId == -1) {
+            return null;
+        }
+        try {
+            // Still scaled down by Glide, so we never keep a full size decode.
+            return Glide.with(mContext)
+                    .load(artResourceId)
+                    .asBitmap()
+                    .fitCenter()
+                    .into(mWidth, mHeight).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(LOG_TAG, "Error decoding large icon " + artResourceId, e);
+            return null;
+        }
+    }
+
+    // The art URL already names the pack and the category, so it makes a good key.
+    private String getKey(int weatherId) {
+        String artUrl = Utility.getArtUrlForWeatherCondition(mContext, weatherId);
+        return artUrl != null ? artUrl
+                : "resource:" + Utility.getArtResourceForWeatherCondition(weatherId);
+    }
+}
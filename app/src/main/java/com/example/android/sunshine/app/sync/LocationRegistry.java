@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps location settings to their row ids in the location table, so that storing a forecast
+ * doesn't cost a query and an insert every sync.
+ *
+ * The map is filled from the location table the first time it's needed.  A location that isn't
+ * in it, or whose city name or coordinates changed, goes through
+ * {@link LocationEntry#METHOD_INSERT_OR_GET}, which looks it up and inserts it in one transaction
+ * inside the provider, so concurrent syncs can't race each other into a duplicate.  Any change to
+ * the location table throws the map away, so a deleted location never hands out a stale id.
+ */
+class LocationRegistry {
+    private static final String LOG_TAG = LocationRegistry.class.getSimpleName();
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+    private static final int INDEX_CITY_NAME = 2;
+    private static final int INDEX_COORD_LAT = 3;
+    private static final int INDEX_COORD_LONG = 4;
+
+    private static LocationRegistry sInstance;
+
+    /**
+     * A location as it's stored.
+     */
+    private static class Location {
+        final long id;
+        final String cityName;
+        final double lat;
+        final double lon;
+
+        Location(long id, String cityName, double lat, double lon) {
+            this.id = id;
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        boolean matches(String cityName, double lat, double lon) {
+            return (this.cityName == null ? cityName == null : this.cityName.equals(cityName))
+                    && Double.compare(this.lat, lat) == 0
+                    && Double.compare(this.lon, lon) == 0;
+        }
+    }
+
+    private final Context mContext;
+    private final Map<String, Location> mLocations = new ConcurrentHashMap<String, Location>();
+    // Bumped whenever the location table changes, so a warm-up that raced a change is dropped.
+    private int mGeneration;
+    private boolean mWarm;
+
+    static synchronized LocationRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocationRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LocationRegistry(Context context) {
+        mContext = context;
+        // A null handler delivers changes on a binder thread, which is all invalidate() needs.
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /**
+     * @return the row id of the location, or -1 if it has never been stored
+     */
+    long getId(String locationSetting) {
+        warm();
+        Location location = mLocations.get(locationSetting);
+        if (location != null) {
+            return location.id;
+        }
+        // It may have been stored since the map was filled.
+        invalidate();
+        warm();
+        location = mLocations.get(locationSetting);
+        return location == null ? -1 : location.id;
+    }
+
+    /**
+     * Returns the row id of a location, storing it first if it's new.  The city name and
+     * coordinates are only written when they're different from what's stored.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param cityName A human-readable city name, e.g "Mountain View"
+     * @param lat the latitude of the city
+     * @param lon the longitude of the city
+     * @return the row ID of the location
+     */
+    long getOrInsert(String locationSetting, String cityName, double lat, double lon) {
+        warm();
+        Location location = mLocations.get(locationSetting);
+        if (location != null && location.matches(cityName, lat, lon)) {
+            return location.id;
+        }
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, lon);
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(LocationEntry.EXTRA_VALUES, locationValues);
+        Bundle result = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_INSERT_OR_GET, null, extras);
+        long locationId = result.getLong(LocationEntry.EXTRA_LOCATION_ID);
+        mLocations.put(locationSetting, new Location(locationId, cityName, lat, lon));
+        return locationId;
+    }
+
+    /**
+     * Forgets every location, so the next lookup reads the table again.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mWarm = false;
+        mLocations.clear();
+    }
+
+    private void warm() {
+        int generation;
+        synchronized (this) {
+            if (mWarm) {
+                return;
+            }
+            generation = mGeneration;
+        }
+
+        Map<String, Location> locations = new ConcurrentHashMap<String, Location>();
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                LOCATION_COLUMNS, null, null, null);
+        if (cursor == null) {
+            Log.e(LOG_TAG, "No cursor for the location table");
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                locations.put(cursor.getString(INDEX_LOCATION_SETTING),
+                        new Location(cursor.getLong(INDEX_ID),
+                                cursor.getString(INDEX_CITY_NAME),
+                                cursor.getDouble(INDEX_COORD_LAT),
+                                cursor.getDouble(INDEX_COORD_LONG)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration || mWarm) {
+                // The table changed while it was being read; the next lookup reads it again.
+                return;
+            }
+            mLocations.putAll(locations);
+            mWarm = true;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+import com.example.android.sunshine.app.Utility;
+
+/**
+ * Decides how much a sync downloads, based on the network it's on.  On Wi-Fi and other unmetered
+ * links a sync fetches every day OWM offers, refreshes every saved location and prefetches the
+ * art.  On metered links it asks for fewer days and leaves the saved locations and the art for
+ * a later sync on an unmetered link; on slow (2G) links it also skips the hourly forecast.
+ *
+ * The bytes each sync downloads are added up per network type, so the savings can be checked
+ * with {@link #getBytes(Context, String)}; the sync logs the totals, and each sync metrics row
+ * records the network it ran on.
+ */
+class NetworkPolicy {
+
+    // The network types bytes are counted under.
+    static final String NETWORK_NONE = "none";
+    static final String NETWORK_WIFI = "wifi";
+    static final String NETWORK_MOBILE = "mobile";
+    static final String NETWORK_OTHER = "other";
+
+    // Days of forecast asked for on metered links, and on slow ones.  Today and the next few
+    // days are what the list and the widgets show first.
+    static final int METERED_FORECAST_DAYS = 7;
+    static final int SLOW_FORECAST_DAYS = 3;
+
+    private static final String PREFS_NAME = "network_usage";
+    private static final String KEY_BYTES_SUFFIX = "_bytes";
+    private static final String KEY_SYNCS_SUFFIX = "_syncs";
+
+    final String networkType;
+    final boolean metered;
+    final boolean slow;
+
+    NetworkPolicy(String networkType, boolean metered, boolean slow) {
+        this.networkType = networkType;
+        this.metered = metered;
+        this.slow = slow;
+    }
+
+    /**
+     * @return the policy for the network that's active now
+     */
+    static NetworkPolicy forActiveNetwork(Context context) {
+        if (!Utility.isNetworkAvailable(context)) {
+            return new NetworkPolicy(NETWORK_NONE, true, true);
+        }
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        if (activeNetwork == null) {
+            return new NetworkPolicy(NETWORK_NONE, true, true);
+        }
+
+        String networkType;
+        switch (activeNetwork.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                networkType = NETWORK_WIFI;
+                break;
+            case ConnectivityManager.TYPE_MOBILE:
+                networkType = NETWORK_MOBILE;
+                break;
+            default:
+                networkType = NETWORK_OTHER;
+        }
+        return new NetworkPolicy(networkType, Utility.isNetworkMetered(context),
+                activeNetwork.getType() == ConnectivityManager.TYPE_MOBILE
+                        && isSlowSubtype(activeNetwork.getSubtype()));
+    }
+
+    private static boolean isSlowSubtype(int subtype) {
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return how many days of forecast to ask the server for
+     */
+    int getForecastDays() {
+        if (slow) {
+            return SLOW_FORECAST_DAYS;
+        }
+        return metered ? METERED_FORECAST_DAYS : ForecastFetcher.FORECAST_DAYS;
+    }
+
+    /**
+     * @return true if locations other than the preferred one should be refreshed now, rather
+     * than on the next unmetered sync
+     */
+    boolean shouldRefreshSavedLocations() {
+        return !metered;
+    }
+
+    /**
+     * @return true if the 3 hour forecast should be fetched
+     */
+    boolean shouldFetchHourly() {
+        return !slow;
+    }
+
+    /**
+     * @return true if art should be downloaded before anything asks for it
+     */
+    boolean shouldPrefetchArt() {
+        return !metered;
+    }
+
+    /**
+     * Adds a sync's downloads to the count for the network it ran on.
+     */
+    static void recordBytes(Context context, String networkType, long bytes) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        synchronized (NetworkPolicy.class) {
+            prefs.edit()
+                    .putLong(networkType + KEY_BYTES_SUFFIX,
+                            prefs.getLong(networkType + KEY_BYTES_SUFFIX, 0) + bytes)
+                    .putLong(networkType + KEY_SYNCS_SUFFIX,
+                            prefs.getLong(networkType + KEY_SYNCS_SUFFIX, 0) + 1)
+                    .apply();
+        }
+    }
+
+    /**
+     * @return the bytes syncs have downloaded on a type of network, one of the NETWORK_* values
+     */
+    static long getBytes(Context context, String networkType) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(networkType + KEY_BYTES_SUFFIX, 0);
+    }
+
+    /**
+     * @return how many syncs ran on a type of network, one of the NETWORK_* values
+     */
+    static long getSyncCount(Context context, String networkType) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(networkType + KEY_SYNCS_SUFFIX, 0);
+    }
+
+    @Override
+    public String toString() {
+        return networkType + (metered ? ", metered" : "") + (slow ? ", slow" : "");
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * The OpenWeatherMap daily and 3 hour forecast APIs, which is what the app talks to outside of
+ * tests.
+ */
+class OpenWeatherMapSource implements WeatherSource {
+
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    static final String HOURLY_FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast?";
+
+    @Override
+    public String getEndpoint() {
+        return FORECAST_BASE_URL;
+    }
+
+    @Override
+    public URL getForecastUrl(ForecastFetcher.Request request, int days) throws IOException {
+        return buildUrl(FORECAST_BASE_URL, request, days);
+    }
+
+    @Override
+    public URL getHourlyForecastUrl(ForecastFetcher.Request request, int steps)
+            throws IOException {
+        // Same parameters as the daily forecast, except cnt counts steps rather than days.
+        return buildUrl(HOURLY_FORECAST_BASE_URL, request, steps);
+    }
+
+    private static URL buildUrl(String baseUrl, ForecastFetcher.Request request, int count)
+            throws IOException {
+        String format = "json";
+        String units = "metric";
+
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String QUERY_PARAM = "q";
+        final String LAT_PARAM = "lat";
+        final String LON_PARAM = "lon";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String COUNT_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri.Builder uriBuilder = Uri.parse(baseUrl).buildUpon();
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (request.hasLatLon()) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, request.latitude)
+                    .appendQueryParameter(LON_PARAM, request.longitude);
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, request.locationSetting);
+        }
+
+        Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(COUNT_PARAM, Integer.toString(count))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
+
+    @Override
+    public OwmForecastParser.Forecast parse(InputStream in) throws JSONException, IOException {
+        return OwmForecastParser.parse(in);
+    }
+
+    @Override
+    public int parseHourly(InputStream in, OwmHourlyParser.StepHandler handler)
+            throws JSONException, IOException {
+        return OwmHourlyParser.parse(in, handler);
+    }
+}
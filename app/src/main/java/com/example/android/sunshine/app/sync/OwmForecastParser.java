@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pulls the fields Sunshine needs out of an OpenWeatherMap daily forecast response as it comes
+ * off the wire.  Unlike building a {@link org.json.JSONObject}, the whole payload is never held in
+ * memory: each element of the "list" array is turned into a row and then dropped.
+ *
+ * Each day is validated as it is read.  A day with a missing, mistyped or implausible field is
+ * quarantined rather than failing the whole response, so one bad record doesn't throw away the
+ * good days and send us back to the server for all of them.
+ */
+class OwmForecastParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    /** Returned by {@link Forecast#messageCode} when the response carried no "cod" field. */
+    static final int NO_MESSAGE_CODE = -1;
+
+    // Why a day was quarantined.
+    static final int REASON_MISSING_FIELD = 1;
+    static final int REASON_WRONG_TYPE = 2;
+    static final int REASON_OUT_OF_RANGE = 3;
+
+    // The names validation problems are counted under.  FIELD_DAY is a "list" element that
+    // isn't an object at all.
+    static final String FIELD_DAY = "list";
+    static final String FIELD_PRESSURE = "pressure";
+    static final String FIELD_HUMIDITY = "humidity";
+    static final String FIELD_WIND_SPEED = "speed";
+    static final String FIELD_WIND_DIRECTION = "deg";
+    static final String FIELD_HIGH = "temp.max";
+    static final String FIELD_LOW = "temp.min";
+    static final String FIELD_DESCRIPTION = "weather.main";
+    static final String FIELD_WEATHER_ID = "weather.id";
+    static final String[] FIELDS = {FIELD_DAY, FIELD_PRESSURE, FIELD_HUMIDITY, FIELD_WIND_SPEED,
+            FIELD_WIND_DIRECTION, FIELD_HIGH, FIELD_LOW, FIELD_DESCRIPTION, FIELD_WEATHER_ID};
+
+    // Plausible bounds, in the metric units we ask for.  Anything outside them is a broken
+    // record rather than weather.
+    private static final double MAX_PRESSURE = 1100;
+    private static final double MAX_WIND_SPEED = 150;
+    private static final double MAX_TEMPERATURE = 100;
+    private static final int MIN_WEATHER_ID = 200;
+    private static final int MAX_WEATHER_ID = 999;
+
+    /**
+     * A day that was left out, and the first thing found wrong with it.
+     */
+    static class QuarantinedDay {
+        // Position in the "list" array, i.e. days after today.
+        final int index;
+        final String field;
+        final int reason;
+
+        QuarantinedDay(int index, String field, int reason) {
+            this.index = index;
+            this.field = field;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "day " + index + ": " + field + " (reason " + reason + ")";
+        }
+    }
+
+    /**
+     * Everything we keep from a single response.  The rows in {@link #days} hold the weather
+     * columns only; the caller fills in the date and the location key.
+     */
+    static class Forecast {
+        int messageCode = NO_MESSAGE_CODE;
+        String cityName;
+        double cityLatitude = Double.NaN;
+        double cityLongitude = Double.NaN;
+        // One entry per element of the "list" array.  A quarantined day is left as null, so the
+        // days after it keep their position, which is what they're dated by.
+        final List<ContentValues> days = new ArrayList<ContentValues>();
+        final List<QuarantinedDay> quarantined = new ArrayList<QuarantinedDay>();
+        // How many days each field was invalid in, whether or not it was the first problem.
+        final Map<String, Integer> invalidFields = new TreeMap<String, Integer>();
+
+        boolean hasCity() {
+            return cityName != null
+                    && !Double.isNaN(cityLatitude) && !Double.isNaN(cityLongitude);
+        }
+
+        /**
+         * @return how many days made it through validation
+         */
+        int getValidDayCount() {
+            return days.size() - quarantined.size();
+        }
+
+        /**
+         * Records the day about to be added to {@link #days} as quarantined.
+         */
+        void quarantine(Map<String, Integer> problems) {
+            Map.Entry<String, Integer> first = problems.entrySet().iterator().next();
+            quarantined.add(new QuarantinedDay(days.size(), first.getKey(), first.getValue()));
+            for (String field : problems.keySet()) {
+                Integer count = invalidFields.get(field);
+                invalidFields.put(field, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    private OwmForecastParser() {
+    }
+
+    /**
+     * Parses a forecast straight from the response stream.  The stream is not closed.
+     *
+     * @throws JSONException if the payload is not the JSON we expect.  A bad day on its own is
+     *                       quarantined instead.
+     * @throws IOException if reading from the stream fails
+     */
+    static Forecast parse(InputStream in) throws JSONException, IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return readForecast(reader);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // JsonReader reports bad syntax as an IOException and unexpected tokens as an
+            // IllegalStateException.  Either way the server sent us something we can't use, so
+            // surface it the same way the old JSONObject path did.
+            JSONException jsonException = new JSONException(e.getMessage());
+            jsonException.initCause(e);
+            throw jsonException;
+        }
+    }
+
+    private static Forecast readForecast(JsonReader reader) throws IOException {
+        Forecast forecast = new Forecast();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                // OWM sends this as a string ("200") on success and as a number on some errors.
+                // nextInt() copes with both.
+                forecast.messageCode = reader.nextInt();
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader, forecast);
+            } else if (OWM_LIST.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    forecast.days.add(readDay(reader, forecast));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return forecast;
+    }
+
+    private static void readCity(JsonReader reader, Forecast forecast) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                forecast.cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        forecast.cityLatitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        forecast.cityLongitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads one element of the "list" array.  Only bad syntax is fatal: a value of the wrong type
+     * is skipped over, so one broken day doesn't cost us the rest of the payload.
+     *
+     * @return the day's weather columns, or null if the day was quarantined
+     */
+    private static ContentValues readDay(JsonReader reader, Forecast forecast)
+            throws IOException {
+        // What's wrong with the day, by field, in the order it was found.
+        Map<String, Integer> problems = new LinkedHashMap<String, Integer>();
+
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            problems.put(FIELD_DAY, REASON_WRONG_TYPE);
+            forecast.quarantine(problems);
+            return null;
+        }
+
+        // These are the values that will be collected.
+        double pressure = Double.NaN;
+        double humidity = Double.NaN;
+        double windSpeed = Double.NaN;
+        double windDirection = Double.NaN;
+
+        double high = Double.NaN;
+        double low = Double.NaN;
+
+        String description = null;
+        double weatherId = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = readNumber(reader, FIELD_PRESSURE, problems);
+            } else if (OWM_HUMIDITY.equals(name)) {
+                humidity = readNumber(reader, FIELD_HUMIDITY, problems);
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = readNumber(reader, FIELD_WIND_SPEED, problems);
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = readNumber(reader, FIELD_WIND_DIRECTION, problems);
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    problems.put(FIELD_HIGH, REASON_WRONG_TYPE);
+                    problems.put(FIELD_LOW, REASON_WRONG_TYPE);
+                    continue;
+                }
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        high = readNumber(reader, FIELD_HIGH, problems);
+                    } else if (OWM_MIN.equals(tempName)) {
+                        low = readNumber(reader, FIELD_LOW, problems);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        problems.put(FIELD_DESCRIPTION, REASON_WRONG_TYPE);
+                        problems.put(FIELD_WEATHER_ID, REASON_WRONG_TYPE);
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = readString(reader, FIELD_DESCRIPTION, problems);
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = readNumber(reader, FIELD_WEATHER_ID, problems);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        checkRange(problems, FIELD_PRESSURE, pressure, 0, MAX_PRESSURE);
+        checkRange(problems, FIELD_HUMIDITY, humidity, 0, 100);
+        checkRange(problems, FIELD_WIND_SPEED, windSpeed, 0, MAX_WIND_SPEED);
+        checkRange(problems, FIELD_WIND_DIRECTION, windDirection, 0, 360);
+        checkRange(problems, FIELD_HIGH, high, -MAX_TEMPERATURE, MAX_TEMPERATURE);
+        checkRange(problems, FIELD_LOW, low, -MAX_TEMPERATURE, MAX_TEMPERATURE);
+        if (low > high && !problems.containsKey(FIELD_LOW)) {
+            problems.put(FIELD_LOW, REASON_OUT_OF_RANGE);
+        }
+        if (description == null && !problems.containsKey(FIELD_DESCRIPTION)) {
+            problems.put(FIELD_DESCRIPTION, REASON_MISSING_FIELD);
+        }
+        if (!Double.isNaN(weatherId) && weatherId != Math.floor(weatherId)) {
+            problems.put(FIELD_WEATHER_ID, REASON_WRONG_TYPE);
+        }
+        checkRange(problems, FIELD_WEATHER_ID, weatherId, MIN_WEATHER_ID, MAX_WEATHER_ID);
+
+        if (!problems.isEmpty()) {
+            forecast.quarantine(problems);
+            return null;
+        }
+
+        ContentValues weatherValues = new ContentValues();
+        // The old JSONObject path read humidity with getInt(), which truncates.  Keep doing that
+        // so the stored values don't change under us.
+        weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, (int) humidity);
+        weatherValues.put(WeatherEntry.COLUMN_PRESSURE, pressure);
+        weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        weatherValues.put(WeatherEntry.COLUMN_DEGREES, windDirection);
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+        weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, low);
+        weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, description);
+        weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, (int) weatherId);
+        return weatherValues;
+    }
+
+    /**
+     * Reads a number, which OWM sometimes sends as a string.  Anything else is skipped and
+     * recorded against the field.
+     *
+     * @return the number, or NaN if the value wasn't one
+     */
+    private static double readNumber(JsonReader reader, String field,
+                                     Map<String, Integer> problems) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                double value = Double.parseDouble(reader.nextString());
+                if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // recorded below
+            }
+        } else {
+            reader.skipValue();
+        }
+        problems.put(field, REASON_WRONG_TYPE);
+        return Double.NaN;
+    }
+
+    /**
+     * Reads a string.  Anything else but a number is skipped and recorded against the field.
+     *
+     * @return the string, or null if the value wasn't one
+     */
+    private static String readString(JsonReader reader, String field,
+                                     Map<String, Integer> problems) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        problems.put(field, REASON_WRONG_TYPE);
+        return null;
+    }
+
+    /**
+     * Records a field that is missing or outside [min, max].  A field that already has a problem
+     * keeps the first one.
+     */
+    private static void checkRange(Map<String, Integer> problems, String field, double value,
+                                   double min, double max) {
+        if (problems.containsKey(field)) {
+            return;
+        }
+        if (Double.isNaN(value)) {
+            problems.put(field, REASON_MISSING_FIELD);
+        } else if (value < min || value > max) {
+            problems.put(field, REASON_OUT_OF_RANGE);
+        }
+    }
+}
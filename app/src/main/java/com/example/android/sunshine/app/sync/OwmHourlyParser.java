@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads an OpenWeatherMap 3 hour forecast response as it comes off the wire, handing each step
+ * on as soon as it has been read.  Nothing but the current step is held in memory, so the caller
+ * can store steps in batches while the rest are still downloading.
+ */
+class OwmHourlyParser {
+
+    // Each step's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+    private static final String OWM_TIME = "dt";
+
+    // Temperature, pressure and humidity are children of the "main" object.
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+
+    // Wind speed and direction are children of the "wind" object.
+    private static final String OWM_WIND = "wind";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    /**
+     * Receives the steps in the order they appear in the response.
+     */
+    interface StepHandler {
+        /**
+         * @param step the hourly columns for one step, with the timestamp but no location key
+         * @throws IOException to stop parsing
+         */
+        void onStep(ContentValues step) throws IOException;
+    }
+
+    private OwmHourlyParser() {
+    }
+
+    /**
+     * Parses a 3 hour forecast straight from the response stream.  The stream is not closed.
+     *
+     * @return the response's "cod", or {@link OwmForecastParser#NO_MESSAGE_CODE} if it had none
+     * @throws JSONException if the payload is not the JSON we expect
+     * @throws IOException if reading from the stream, or the handler, fails
+     */
+    static int parse(InputStream in, StepHandler handler) throws JSONException, IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            int messageCode = OwmForecastParser.NO_MESSAGE_CODE;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    // A string ("200") on success and a number on some errors.
+                    messageCode = reader.nextInt();
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        handler.onStep(readStep(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return messageCode;
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // Same as the daily parser: whatever the reader chokes on, the server sent us
+            // something we can't use.
+            JSONException jsonException = new JSONException(e.getMessage());
+            jsonException.initCause(e);
+            throw jsonException;
+        }
+    }
+
+    private static ContentValues readStep(JsonReader reader) throws JSONException, IOException {
+        long time = -1;
+        double temperature = Double.NaN;
+        double pressure = Double.NaN;
+        double humidity = Double.NaN;
+        double windSpeed = Double.NaN;
+        double windDirection = Double.NaN;
+        String description = null;
+        int weatherId = 0;
+        boolean hasWeatherId = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                time = reader.nextLong();
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        temperature = reader.nextDouble();
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        pressure = reader.nextDouble();
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        humidity = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        windSpeed = reader.nextDouble();
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        windDirection = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Only the first condition is used, as with the daily forecast.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = reader.nextInt();
+                            hasWeatherId = true;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (time < 0 || Double.isNaN(temperature) || Double.isNaN(pressure)
+                || Double.isNaN(humidity) || Double.isNaN(windSpeed)
+                || Double.isNaN(windDirection) || description == null || !hasWeatherId) {
+            throw new JSONException("Forecast step is missing a required field");
+        }
+
+        ContentValues stepValues = new ContentValues();
+        // OWM sends seconds since the epoch.
+        stepValues.put(HourlyEntry.COLUMN_TIMESTAMP, time * 1000);
+        stepValues.put(HourlyEntry.COLUMN_TEMP, temperature);
+        stepValues.put(HourlyEntry.COLUMN_PRESSURE, pressure);
+        stepValues.put(HourlyEntry.COLUMN_HUMIDITY, humidity);
+        stepValues.put(HourlyEntry.COLUMN_WIND_SPEED, windSpeed);
+        stepValues.put(HourlyEntry.COLUMN_DEGREES, windDirection);
+        stepValues.put(HourlyEntry.COLUMN_SHORT_DESC, description);
+        stepValues.put(HourlyEntry.COLUMN_WEATHER_ID, weatherId);
+        return stepValues;
+    }
+}
@@ -2,40 +2,23 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.content.res.Resources;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
-import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
-import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
@@ -44,20 +27,11 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements GoogleApiClient.ConnectionCallbacks,GoogleApiClient.OnConnectionFailedListener{
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -68,6 +42,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     private static final String KEY_WEATHER_ID = "weatherId";
 
     GoogleApiClient mGoogleApiClient;
+    // Where forecasts are fetched from.  Tests give the stages a replay server of their own.
+    private final WeatherSource mWeatherSource = new OpenWeatherMapSource();
+    // The running sync's deadline, so onSyncCanceled can stop it; null between syncs.
+    private volatile SyncDeadline mDeadline;
 
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
@@ -75,24 +53,23 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
-    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
-    private static final int WEATHER_NOTIFICATION_ID = 3004;
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+
+    private static final String[] SAVED_LOCATION_PROJECTION = new String[] {
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
     };
 
     // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
+    private static final int INDEX_LOCATION_SETTING = 0;
+    private static final int INDEX_COORD_LAT = 1;
+    private static final int INDEX_COORD_LONG = 2;
+
+    // Sync extra asking for every saved location to be refreshed, not just the preferred one.
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS = "all_locations";
 
     @Retention(RetentionPolicy.SOURCE)
-    @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
+    @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID, LOCATION_STATUS_TIMEOUT})
     public @interface LocationStatus {}
 
     public static final int LOCATION_STATUS_OK = 0;
@@ -100,6 +77,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     public static final int LOCATION_STATUS_SERVER_INVALID = 2;
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
+    // The server didn't answer in time, as opposed to answering with an error.
+    public static final int LOCATION_STATUS_TIMEOUT = 5;
 
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
@@ -129,305 +108,272 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         Log.e(LOG_TAG, "onConnectionFailed(): Failed to connect, with result: " + connectionResult);
     }
 
+    @Override
+    public void onSyncCanceled() {
+        // The default only interrupts the sync thread, which a socket stuck in a read ignores.
+        SyncDeadline deadline = mDeadline;
+        if (deadline != null) {
+            Log.d(LOG_TAG, "Cancelling sync");
+            deadline.cancel();
+        }
+        super.onSyncCanceled();
+    }
+
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
+        SyncDeadline deadline = new SyncDeadline(SyncDeadline.SYNC_BUDGET_MILLIS);
+        mDeadline = deadline;
+        try {
+            performSync(extras, syncResult, deadline);
+        } finally {
+            mDeadline = null;
+        }
+    }
 
+    private void performSync(Bundle extras, SyncResult syncResult, SyncDeadline deadline) {
         // We no longer need just the location String, but also potentially the latitude and
         // longitude, in case we are syncing based on a new Place Picker API result.
         Context context = getContext();
         String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        ForecastFetcher.Request preferredRequest;
+        if (Utility.isLocationLatLonAvailable(context)) {
+            preferredRequest = new ForecastFetcher.Request(locationQuery,
+                    String.valueOf(Utility.getLocationLatitude(context)),
+                    String.valueOf(Utility.getLocationLongitude(context)));
+        } else {
+            preferredRequest = new ForecastFetcher.Request(locationQuery, null, null);
+        }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        // How much we download depends on whether the user pays for it.
+        NetworkPolicy networkPolicy = NetworkPolicy.forActiveNetwork(context);
+        Log.d(LOG_TAG, "Network: " + networkPolicy);
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
+        List<ForecastFetcher.Request> requests = new ArrayList<ForecastFetcher.Request>();
+        requests.add(preferredRequest);
+        if (extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS, false)) {
+            if (networkPolicy.shouldRefreshSavedLocations()) {
+                addSavedLocationRequests(requests, locationQuery);
             } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+                // The next periodic sync on an unmetered network picks them up.
+                Log.d(LOG_TAG, "Deferring saved locations until we're off a metered network");
             }
+        }
+        Log.d(LOG_TAG, "Syncing " + requests.size() + " location(s)");
+
+        SyncMetrics metrics = new SyncMetrics(context, networkPolicy.networkType);
+        ForecastPayloadCache payloadCache = new ForecastPayloadCache(context);
+        ForecastFetcher fetcher = new ForecastFetcher(context, mWeatherSource, payloadCache,
+                deadline.forStage(SyncDeadline.FETCH_BUDGET_MILLIS),
+                networkPolicy.getForecastDays());
+        ForecastTransformer transformer = new ForecastTransformer(context);
+        ForecastPersister persister = new ForecastPersister(context, transformer.getDate(-1));
+        ForecastFanOut fanOut = new ForecastFanOut(context, mGoogleApiClient);
+        SyncJournal journal = new SyncJournal(context);
+
+        // Finish whatever a sync that was killed after fetching left behind, from the payloads
+        // it cached, so the fetches below get 304s instead of downloading it all again.
+        resumeInterruptedSync(journal, fetcher, transformer, persister, fanOut, preferredRequest,
+                deadline);
+
+        // If we have nothing to show for the preferred location (the user just switched to it),
+        // show what we cached for it right away.  The fetch below revalidates it.
+        if (!fetcher.hasStoredForecast(locationQuery)) {
+            new SyncPipeline(fetcher.cacheOnly(), transformer, persister, fanOut, deadline)
+                    .run(Collections.singletonList(preferredRequest), preferredRequest, null);
+        }
+
+        if (NetworkPolicy.NETWORK_NONE.equals(networkPolicy.networkType)) {
+            // Every fetch would fail without reaching the server, which says nothing about its
+            // health, so the retry policy isn't touched.  The list says we're offline rather
+            // than that the server is down.
+            Log.d(LOG_TAG, "No network, not fetching");
+            setLocationStatus(context, LOCATION_STATUS_UNKNOWN);
+            metrics.onSyncFinished(LOCATION_STATUS_UNKNOWN, false);
+            return;
+        }
+
+        // Don't pile onto a server that has been failing.  The SyncManager holds back further
+        // syncs until we're ready to try again.
+        SyncRetryPolicy retryPolicy =
+                SyncRetryPolicy.forEndpoint(context, mWeatherSource.getEndpoint());
+        long retryDelay = retryPolicy.getRetryDelayMillis(
+                extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false));
+        if (retryDelay > 0) {
+            Log.d(LOG_TAG, "Backing off, next attempt in " + retryDelay / 1000 + "s");
+            syncResult.delayUntil = (System.currentTimeMillis() + retryDelay) / 1000;
+            return;
+        }
 
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+        SyncPipeline pipeline = new SyncPipeline(journal.recording(fetcher), transformer,
+                journal.committing(persister), fanOut, deadline);
+        SyncPipeline.Outcome outcome = pipeline.run(requests, preferredRequest, metrics);
+        metrics.addOutcome(outcome);
+        long bytesRead = 0;
+        for (ForecastTransformer.Transformed forecast : outcome.forecasts) {
+            bytesRead += forecast.result.bytesRead;
+        }
+        NetworkPolicy.recordBytes(context, networkPolicy.networkType, bytesRead);
+        Log.d(LOG_TAG, "Downloaded " + bytesRead + " bytes on " + networkPolicy.networkType
+                + ", " + NetworkPolicy.getBytes(context, networkPolicy.networkType)
+                + " bytes over " + NetworkPolicy.getSyncCount(context, networkPolicy.networkType)
+                + " syncs so far");
+
+        if (outcome.cancelled) {
+            // Nothing was stored, and we learned nothing about the server or the location, so
+            // leave the retry policy, the location status and the schedule as they were.
+            metrics.onSyncFinished(LOCATION_STATUS_UNKNOWN, false);
+            return;
+        }
+
+        // Any answer from the server other than "down" or garbage means it's healthy, even if
+        // it didn't recognise a location.  Not answering in time counts as down.
+        boolean serverResponded = false;
+        for (ForecastTransformer.Transformed forecast : outcome.forecasts) {
+            if (forecast.locationStatus != LOCATION_STATUS_SERVER_DOWN
+                    && forecast.locationStatus != LOCATION_STATUS_SERVER_INVALID
+                    && forecast.locationStatus != LOCATION_STATUS_TIMEOUT) {
+                serverResponded = true;
+                break;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        }
+        if (serverResponded) {
+            retryPolicy.recordSuccess();
+            if (networkPolicy.shouldFetchHourly()) {
+                ingestHourlyForecasts(context, outcome,
+                        deadline.forStage(SyncDeadline.HOURLY_BUDGET_MILLIS));
             }
+        } else {
+            syncResult.delayUntil = retryPolicy.recordFailure() / 1000;
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+        Log.d(LOG_TAG, "Sync Complete. " + outcome.persisted.rows + " Processed, stage timings "
+                + outcome.timings);
+        Log.d(LOG_TAG, "Payload cache: " + payloadCache.getHits() + " hits, "
+                + payloadCache.getMisses() + " misses, " + payloadCache.getSize() + " of "
+                + ForecastPayloadCache.MAX_CACHE_BYTES + " bytes used");
+        metrics.setCacheStats(payloadCache.getHits(), payloadCache.getMisses(),
+                payloadCache.getSize());
+        logValidationTotals(context);
+        setLocationStatus(context, outcome.preferredStatus);
+        metrics.onSyncFinished(outcome.preferredStatus, outcome.fanOutPending);
+
+        // Let how much the forecast moved decide when we next look.  Failed syncs tell us
+        // nothing about the weather, so they leave the schedule alone.
+        if (outcome.preferredStatus == LOCATION_STATUS_OK) {
+            SyncScheduler.onSyncFinished(context, outcome.persisted.significantChanges);
+        }
+    }
+
+    /**
+     * Persists every location the journal says was fetched but never stored.
+     */
+    private void resumeInterruptedSync(SyncJournal journal, ForecastFetcher fetcher,
+                                       ForecastTransformer transformer,
+                                       ForecastPersister persister, ForecastFanOut fanOut,
+                                       ForecastFetcher.Request preferredRequest,
+                                       SyncDeadline deadline) {
+        List<ForecastFetcher.Request> pending = journal.getPendingRequests();
+        if (pending.isEmpty()) {
+            return;
+        }
+        Log.d(LOG_TAG, "Resuming " + pending.size() + " location(s) from the sync journal");
+
+        // The pipeline knows the preferred location by its request.
+        String preferredKey = ForecastFetcher.getLocationKey(preferredRequest);
+        ForecastFetcher.Request resumedPreferred = null;
+        for (ForecastFetcher.Request request : pending) {
+            if (ForecastFetcher.getLocationKey(request).equals(preferredKey)) {
+                resumedPreferred = request;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+        }
+        new SyncPipeline(journal.replaying(fetcher), transformer, journal.committing(persister),
+                fanOut, deadline).run(pending, resumedPreferred, null);
+    }
+
+    /**
+     * Stores the 3 hour forecast for every location whose daily forecast the server just
+     * answered for.  This runs after the daily forecasts are stored, because the steps hang off
+     * the location rows those create.  Locations still waiting when the deadline passes keep
+     * the steps they had.
+     */
+    private void ingestHourlyForecasts(Context context, SyncPipeline.Outcome outcome,
+                                       SyncDeadline deadline) {
+        HourlyForecastIngester ingester =
+                new HourlyForecastIngester(context, mWeatherSource, deadline);
+        for (ForecastTransformer.Transformed forecast : outcome.forecasts) {
+            if (forecast.locationStatus != LOCATION_STATUS_OK || forecast.result.fromCache) {
+                continue;
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            if (deadline.shouldStop()) {
+                Log.d(LOG_TAG, "Out of time for hourly forecasts");
+                break;
             }
+            int steps = ingester.ingest(forecast.result.request);
+            Log.d(LOG_TAG, "Hourly forecast for " + forecast.result.request.locationSetting
+                    + ": " + steps + " steps stored");
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Logs what forecast validation has let through and quarantined since install, with the
+     * fields that were invalid, so a server sending broken records shows up in the sync log.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-        Log.d(LOG_TAG, "getWeatherDataFromJson");
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
-
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
-                }
+    private static void logValidationTotals(Context context) {
+        StringBuilder invalid = new StringBuilder();
+        for (String field : OwmForecastParser.FIELDS) {
+            long count = ValidationCounters.getInvalidCount(context, field);
+            if (count > 0) {
+                invalid.append(invalid.length() == 0 ? "" : ", ")
+                        .append(field).append(' ').append(count);
             }
+        }
+        Log.d(LOG_TAG, "Validation totals: " + ValidationCounters.getAcceptedDays(context)
+                + " days accepted, " + ValidationCounters.getQuarantinedDays(context)
+                + " quarantined, invalid fields [" + invalid + "]");
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
-
-                // Update Watchface with today's most recent forecast
-                if (i == 0 && mGoogleApiClient != null) {
-                    Log.d(LOG_TAG, "High: " + high + ", Low: " + low + ", Weather ID: " + weatherId);
-                    updateWatchfaceWeather(high, low, weatherId);
+    /**
+     * Adds a request for every location in the database other than the preferred one.  These
+     * use the coordinates OWM gave us for the city, since the setting string may be a Place
+     * Picker address the server doesn't understand.
+     */
+    private void addSavedLocationRequests(List<ForecastFetcher.Request> requests,
+                                          String preferredLocation) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                SAVED_LOCATION_PROJECTION,
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String locationSetting = cursor.getString(INDEX_LOCATION_SETTING);
+                if (locationSetting.equals(preferredLocation)) {
+                    continue;
                 }
+                requests.add(new ForecastFetcher.Request(locationSetting,
+                        String.valueOf(cursor.getDouble(INDEX_COORD_LAT)),
+                        String.valueOf(cursor.getDouble(INDEX_COORD_LONG))));
             }
-
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-            }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+        } finally {
+            cursor.close();
         }
     }
 
     public void updateWatchfaceWeather(double high, double low, int weatherId) {
         Log.d(LOG_TAG, "updateWatchfaceWeather");
+        sendWatchfaceWeather(mGoogleApiClient, high, low, weatherId);
+    }
 
+    /**
+     * Pushes today's forecast to the watch face over the given (connected) client.
+     */
+    public static void sendWatchfaceWeather(GoogleApiClient googleApiClient,
+                                            double high, double low, int weatherId) {
         PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(PATH_WEATHER);
 
 //        putDataMapRequest.getDataMap().putString(KEY_HIGH_TEMP, "37C");
@@ -439,193 +385,18 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         putDataMapRequest.getDataMap().putInt(KEY_WEATHER_ID, weatherId);
 
         PutDataRequest request = putDataMapRequest.asPutDataRequest();
-        Wearable.DataApi.putDataItem(mGoogleApiClient, request)
+        Wearable.DataApi.putDataItem(googleApiClient, request)
                 .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
                     @Override
                     public void onResult(DataApi.DataItemResult dataItemResult) {
                         if (!dataItemResult.getStatus().isSuccess()) {
-                            Log.d(LOG_TAG, "Failed to update watchface with updated weather forecast");
+                            Log.d("SunshineSyncAdapter", "Failed to update watchface with updated weather forecast");
                         } else {
-                            Log.d(LOG_TAG, "Successfully updated watchface with updated weather forecast");
+                            Log.d("SunshineSyncAdapter", "Successfully updated watchface with updated weather forecast");
                         }
                     }
                 });
-        Wearable.DataApi.deleteDataItems(mGoogleApiClient, request.getUri());
-    }
-
-    private void updateWidgets() {
-        Context context = getContext();
-        // Setting the package ensures that only components in our app will receive the broadcast
-        Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
-                .setPackage(context.getPackageName());
-        context.sendBroadcast(dataUpdatedIntent);
-    }
-
-    private void updateMuzei() {
-        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
-        // Muzei background on lower API level devices
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
-            context.startService(new Intent(ACTION_DATA_UPDATED)
-                    .setClass(context, WeatherMuzeiSource.class));
-        }
-    }
-
-    private void notifyWeather() {
-        Context context = getContext();
-        //checking the last update and notify if it' the first of the day
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
-                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
-
-        if ( displayNotifications ) {
-
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
-
-            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-                // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
-                }
-                cursor.close();
-            }
-        }
-    }
-
-    /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
-     */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+        Wearable.DataApi.deleteDataItems(googleApiClient, request.getUri());
     }
 
     /**
@@ -634,21 +405,30 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
         Account account = getSyncAccount(context);
         String authority = context.getString(R.string.content_authority);
+
+        // Periodic syncs refresh every saved location, so switching back to one is instant.
+        // Periodic syncs are keyed by their extras, so drop the old preferred-location-only one.
+        ContentResolver.removePeriodicSync(account, authority, new Bundle());
+        Bundle extras = new Bundle();
+        extras.putBoolean(SYNC_EXTRAS_ALL_LOCATIONS, true);
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             // we can enable inexact timers in our periodic sync
             SyncRequest request = new SyncRequest.Builder().
                     syncPeriodic(syncInterval, flexTime).
                     setSyncAdapter(account, authority).
-                    setExtras(new Bundle()).build();
+                    setExtras(extras).build();
             ContentResolver.requestSync(request);
         } else {
             ContentResolver.addPeriodicSync(account,
-                    authority, new Bundle(), syncInterval);
+                    authority, extras, syncInterval);
         }
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately.  Most callers should go through
+     * {@link SyncRequestCoordinator#requestSync(Context, boolean)} instead, which merges bursts
+     * of requests and drops ones that aren't needed.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
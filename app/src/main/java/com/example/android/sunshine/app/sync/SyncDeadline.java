@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * How long a sync, or one stage of it, has left to run, and whether it has been cancelled.
+ *
+ * A sync gets SYNC_BUDGET_MILLIS in all; stages that talk to the network get a smaller budget
+ * of their own through {@link #forStage(long)}, so a slow server leaves time to store what did
+ * arrive.  Cancelling any of them cancels all of them, and disconnects every connection they
+ * opened, since a socket stuck in a read doesn't notice the thread being interrupted.
+ */
+class SyncDeadline {
+
+    // The whole sync, from the first fetch to the last hourly step.
+    static final long SYNC_BUDGET_MILLIS = 60 * 1000;
+    // Fetching the daily forecasts of every location.
+    static final long FETCH_BUDGET_MILLIS = 40 * 1000;
+    // Fetching and storing the hourly forecasts, which come last.
+    static final long HOURLY_BUDGET_MILLIS = 15 * 1000;
+
+    // Caps on how long one connection may take to connect, and wait for a single read.  Both are
+    // lowered further when the deadline is closer than that.
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    /**
+     * What every deadline of one sync shares: whether it was cancelled, and what to disconnect
+     * if it is.
+     */
+    private static class Cancellation {
+        private final Set<HttpURLConnection> mConnections = new HashSet<HttpURLConnection>();
+        private boolean mCancelled;
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        void cancel() {
+            HttpURLConnection[] connections;
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                connections = mConnections.toArray(new HttpURLConnection[mConnections.size()]);
+                mConnections.clear();
+            }
+            for (HttpURLConnection connection : connections) {
+                connection.disconnect();
+            }
+        }
+
+        synchronized boolean add(HttpURLConnection connection) {
+            return !mCancelled && mConnections.add(connection);
+        }
+
+        synchronized void remove(HttpURLConnection connection) {
+            mConnections.remove(connection);
+        }
+    }
+
+    private final long mDeadline;
+    private final Cancellation mCancellation;
+
+    /**
+     * @param budgetMillis how long from now the sync may run
+     */
+    SyncDeadline(long budgetMillis) {
+        this(getDeadline(budgetMillis), new Cancellation());
+    }
+
+    private SyncDeadline(long deadline, Cancellation cancellation) {
+        mDeadline = deadline;
+        mCancellation = cancellation;
+    }
+
+    /**
+     * @return a deadline that never runs out, for work that isn't part of a sync
+     */
+    static SyncDeadline none() {
+        return new SyncDeadline(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return a deadline for one stage: budgetMillis from now, but no later than this one, and
+     * cancelled along with it
+     */
+    SyncDeadline forStage(long budgetMillis) {
+        return new SyncDeadline(Math.min(mDeadline, getDeadline(budgetMillis)), mCancellation);
+    }
+
+    private static long getDeadline(long budgetMillis) {
+        long now = SystemClock.elapsedRealtime();
+        return budgetMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + budgetMillis;
+    }
+
+    /**
+     * @return how long is left, never less than 0
+     */
+    long getRemainingMillis() {
+        return Math.max(0, mDeadline - SystemClock.elapsedRealtime());
+    }
+
+    boolean isExpired() {
+        return getRemainingMillis() == 0;
+    }
+
+    boolean isCancelled() {
+        return mCancellation.isCancelled();
+    }
+
+    /**
+     * @return true if work under this deadline should stop, either way
+     */
+    boolean shouldStop() {
+        return isCancelled() || isExpired();
+    }
+
+    /**
+     * Cancels the sync this deadline belongs to.  Safe to call from any thread.
+     */
+    void cancel() {
+        mCancellation.cancel();
+    }
+
+    /**
+     * Sets a connection's timeouts from what's left and keeps hold of it so that cancelling
+     * disconnects it.  Call {@link #release(HttpURLConnection)} once it's done with.
+     *
+     * @throws InterruptedIOException if there's no time left, or the sync was cancelled
+     */
+    void watch(HttpURLConnection connection) throws InterruptedIOException {
+        throwIfStopped();
+        // 0 means "no timeout" to HttpURLConnection, so never let a timeout reach it.
+        long remaining = Math.max(1, getRemainingMillis());
+        connection.setConnectTimeout((int) Math.min(CONNECT_TIMEOUT_MILLIS, remaining));
+        connection.setReadTimeout((int) Math.min(READ_TIMEOUT_MILLIS, remaining));
+        if (!mCancellation.add(connection)) {
+            throwIfStopped();
+        }
+    }
+
+    void release(HttpURLConnection connection) {
+        mCancellation.remove(connection);
+    }
+
+    /**
+     * Wraps a response body so that reading it stops once the deadline passes.  The read timeout
+     * only bounds each read, so without this a server trickling bytes could hold a sync forever.
+     */
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                throwIfStopped();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                throwIfStopped();
+                return super.read(buffer, offset, count);
+            }
+        };
+    }
+
+    private void throwIfStopped() throws InterruptedIOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException("Sync cancelled");
+        }
+        if (isExpired()) {
+            throw new InterruptedIOException("Sync deadline passed");
+        }
+    }
+}
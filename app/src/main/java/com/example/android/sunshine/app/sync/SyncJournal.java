@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of how far each location got through the {@link SyncPipeline}, so that a
+ * sync killed between fetching and persisting doesn't have to download everything again.
+ *
+ * A location is journaled as fetched once its payload is safely in the
+ * {@link ForecastPayloadCache}, along with the validators the server sent, and as done once the
+ * persist stage has stored it.  Transforming is cheap and has no side effects, so a location
+ * that was fetched but never marked done resumes from its cached payload: it is transformed and
+ * persisted again, and its validators saved, after which the sync's own fetch gets a 304.
+ *
+ * Each record is written with its length and a CRC and synced to disk, so a record torn by a
+ * crash is recognised and dropped along with anything after it.  Once a persist leaves nothing
+ * pending the file is compacted, which normally means deleted.
+ */
+class SyncJournal {
+    private static final String LOG_TAG = SyncJournal.class.getSimpleName();
+
+    static final String FILE_NAME = "sync_journal";
+    static final String RESUME_STAGE_NAME = "resume";
+
+    private static final byte RECORD_FETCHED = 1;
+    private static final byte RECORD_DONE = 2;
+
+    // Anything bigger is a torn length, not a record.
+    private static final int MAX_RECORD_BYTES = 16 * 1024;
+
+    // Older entries can't be resumed, since the payload cache won't serve them any more.
+    static final long MAX_ENTRY_AGE_MILLIS = ForecastPayloadCache.TTL_MILLIS;
+
+    // All syncs in the process share the one file.
+    private static final Object sLock = new Object();
+
+    /**
+     * A location that was fetched but not yet persisted.
+     */
+    private static class Entry {
+        final ForecastFetcher.Request request;
+        final long fetchedAt;
+        final String etag;
+        final String lastModified;
+        final String payloadHash;
+
+        Entry(ForecastFetcher.Request request, long fetchedAt, String etag, String lastModified,
+              String payloadHash) {
+            this.request = request;
+            this.fetchedAt = fetchedAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.payloadHash = payloadHash;
+        }
+    }
+
+    private final Context mContext;
+    private final File mFile;
+    // Location key -> entry, for everything fetched and not yet done; guarded by sLock.
+    private final Map<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+
+    SyncJournal(Context context) {
+        mContext = context;
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Reads the journal and returns a request for every location an earlier sync fetched but
+     * never persisted.
+     */
+    List<ForecastFetcher.Request> getPendingRequests() {
+        List<ForecastFetcher.Request> requests = new ArrayList<ForecastFetcher.Request>();
+        synchronized (sLock) {
+            boolean clean = read();
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Entry> pending : new ArrayList<Map.Entry<String, Entry>>(
+                    mPending.entrySet())) {
+                long age = now - pending.getValue().fetchedAt;
+                if (age < 0 || age >= MAX_ENTRY_AGE_MILLIS) {
+                    mPending.remove(pending.getKey());
+                    clean = false;
+                } else {
+                    requests.add(pending.getValue().request);
+                }
+            }
+            if (!clean) {
+                // Don't leave a torn tail for the next append to follow.
+                compact();
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * @return a fetch stage that journals every payload it caches
+     */
+    SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> recording(
+            final SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> fetchStage) {
+        return new SyncStage<ForecastFetcher.Request, ForecastFetcher.Result>() {
+            @Override
+            public String getName() {
+                return fetchStage.getName();
+            }
+
+            @Override
+            public ForecastFetcher.Result process(ForecastFetcher.Request request) {
+                ForecastFetcher.Result result = fetchStage.process(request);
+                // The same test the fetcher uses to decide whether the payload was cached.
+                if (result.status == ForecastFetcher.RESULT_OK && !result.fromCache
+                        && ForecastTransformer.getLocationStatusForResult(result)
+                        == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+                    recordFetched(result);
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return a fetch stage for {@link #getPendingRequests()}'s requests that reads each one's
+     * payload back from the cache, along with the validators it was fetched with
+     */
+    SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> replaying(
+            final ForecastFetcher fetcher) {
+        return new SyncStage<ForecastFetcher.Request, ForecastFetcher.Result>() {
+            @Override
+            public String getName() {
+                return RESUME_STAGE_NAME;
+            }
+
+            @Override
+            public ForecastFetcher.Result process(ForecastFetcher.Request request) {
+                String locationKey = ForecastFetcher.getLocationKey(request);
+                Entry entry;
+                synchronized (sLock) {
+                    entry = mPending.get(locationKey);
+                }
+                ForecastFetcher.Result result = fetcher.loadFromCache(request);
+                if (entry == null || result.status != ForecastFetcher.RESULT_OK) {
+                    // Nothing left to resume from; the sync fetches it again.
+                    Log.d(LOG_TAG, "Can't resume " + request.locationSetting);
+                    markDone(locationKey);
+                    return result;
+                }
+                // This is exactly what the server sent, so it may be stored like a fresh fetch.
+                result.fromCache = false;
+                result.validators = ForecastValidators.load(mContext, fetcher.getCacheKey(request));
+                result.validators.etag = entry.etag;
+                result.validators.lastModified = entry.lastModified;
+                result.payloadHash = entry.payloadHash;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return a persist stage that marks every location it stored as done, then compacts the
+     * journal
+     */
+    SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted> committing(
+            final SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted>
+                    persistStage) {
+        return new SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted>() {
+            @Override
+            public String getName() {
+                return persistStage.getName();
+            }
+
+            @Override
+            public ForecastPersister.Persisted process(
+                    List<ForecastTransformer.Transformed> forecasts) {
+                ForecastPersister.Persisted persisted = persistStage.process(forecasts);
+                synchronized (sLock) {
+                    for (ForecastTransformer.Transformed forecast : forecasts) {
+                        if (!forecast.result.fromCache) {
+                            markDone(ForecastFetcher.getLocationKey(forecast.result.request));
+                        }
+                    }
+                    if (mPending.isEmpty() || mFile.length() > MAX_RECORD_BYTES) {
+                        compact();
+                    }
+                }
+                return persisted;
+            }
+        };
+    }
+
+    private void recordFetched(ForecastFetcher.Result result) {
+        ForecastFetcher.Request request = result.request;
+        String locationKey = ForecastFetcher.getLocationKey(request);
+        Entry entry = new Entry(request, System.currentTimeMillis(),
+                result.validators == null ? null : result.validators.etag,
+                result.validators == null ? null : result.validators.lastModified,
+                result.payloadHash);
+        synchronized (sLock) {
+            mPending.put(locationKey, entry);
+            append(encodeFetched(locationKey, entry));
+        }
+    }
+
+    private void markDone(String locationKey) {
+        synchronized (sLock) {
+            if (mPending.remove(locationKey) != null) {
+                append(encodeDone(locationKey));
+            }
+        }
+    }
+
+    /**
+     * Replays the file into mPending.
+     *
+     * @return false if it ended in a torn or corrupt record
+     */
+    private boolean read() {
+        mPending.clear();
+        if (!mFile.exists()) {
+            return true;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return true;
+                }
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    return false;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                if (in.readLong() != getCrc(body)) {
+                    return false;
+                }
+                decode(body);
+            }
+        } catch (IOException e) {
+            // A record cut short by a crash ends in EOF halfway through.
+            Log.d(LOG_TAG, "Journal ends in a torn record: " + e.getMessage());
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    private void decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        String locationKey = in.readUTF();
+        if (type == RECORD_DONE) {
+            mPending.remove(locationKey);
+            return;
+        }
+        long fetchedAt = in.readLong();
+        ForecastFetcher.Request request = new ForecastFetcher.Request(in.readUTF(),
+                readNullableUTF(in), readNullableUTF(in));
+        mPending.put(locationKey, new Entry(request, fetchedAt, readNullableUTF(in),
+                readNullableUTF(in), readNullableUTF(in)));
+    }
+
+    private static byte[] encodeFetched(String locationKey, Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(RECORD_FETCHED);
+            out.writeUTF(locationKey);
+            out.writeLong(entry.fetchedAt);
+            out.writeUTF(entry.request.locationSetting);
+            writeNullableUTF(out, entry.request.latitude);
+            writeNullableUTF(out, entry.request.longitude);
+            writeNullableUTF(out, entry.etag);
+            writeNullableUTF(out, entry.lastModified);
+            writeNullableUTF(out, entry.payloadHash);
+        } catch (IOException e) {
+            // Writing to memory doesn't fail.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeDone(String locationKey) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(RECORD_DONE);
+            out.writeUTF(locationKey);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void append(byte[] body) {
+        if (!writeRecords(mFile, true, body)) {
+            // Without the record a crash just means a refetch, as it did before the journal.
+            Log.e(LOG_TAG, "Error appending to the sync journal");
+        }
+    }
+
+    /**
+     * Rewrites the journal with only what's pending, or deletes it if nothing is.
+     */
+    private void compact() {
+        if (mPending.isEmpty()) {
+            mFile.delete();
+            return;
+        }
+        List<byte[]> records = new ArrayList<byte[]>(mPending.size());
+        for (Map.Entry<String, Entry> pending : mPending.entrySet()) {
+            records.add(encodeFetched(pending.getKey(), pending.getValue()));
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        if (!writeRecords(temp, false, records.toArray(new byte[records.size()][]))
+                || !temp.renameTo(mFile)) {
+            Log.e(LOG_TAG, "Error compacting the sync journal");
+            temp.delete();
+        }
+    }
+
+    private static boolean writeRecords(File file, boolean append, byte[]... bodies) {
+        FileOutputStream fileOut = null;
+        try {
+            fileOut = new FileOutputStream(file, append);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            for (byte[] body : bodies) {
+                out.writeInt(body.length);
+                out.write(body);
+                out.writeLong(getCrc(body));
+            }
+            out.flush();
+            // A killed process loses nothing that was written, but a power cut might.
+            fileOut.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing " + file, e);
+            return false;
+        } finally {
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    private static long getCrc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return crc.getValue();
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+/**
+ * Collects the measurements for one sync and stores them as a row in the sync metrics table.
+ *
+ * Fan-out finishes on its own thread, usually after the sync itself has returned, so the row is
+ * written by whichever of {@link #onSyncFinished} and {@link #onFanOutFinished} comes last.
+ */
+class SyncMetrics implements SyncPipeline.FanOutListener {
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    // Recorded as the fan-out time when there was nothing to fan out, or a newer sync's
+    // fan-out replaced this one before it ran; and as a consumer's time when it wasn't told.
+    static final long FAN_OUT_SKIPPED = -1;
+
+    private final Context mContext;
+    private final long mStartTime;
+    private final long mStartElapsed;
+    private final String mNetworkType;
+
+    private long mDuration;
+    private int mLocations;
+    private long mConnectMillis;
+    private long mTtfbMillis;
+    private long mBytesRead;
+    private long mParseMillis;
+    private int mRowsInserted;
+    private int mRowsUpdated;
+    private int mRowsDeleted;
+    private long mFanOutMillis = FAN_OUT_SKIPPED;
+    private ForecastFanOut.Dispatch mDispatch;
+    private int mCacheHits;
+    private int mCacheMisses;
+    private long mCacheBytes;
+    private int mDaysAccepted;
+    private int mDaysQuarantined;
+    private @SunshineSyncAdapter.LocationStatus int mOutcome =
+            SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+
+    private boolean mSyncFinished;
+    private boolean mFanOutFinished;
+
+    /**
+     * @param networkType the network the sync runs on, one of the NetworkPolicy.NETWORK_* values
+     */
+    SyncMetrics(Context context, String networkType) {
+        mContext = context.getApplicationContext();
+        mNetworkType = networkType;
+        mStartTime = System.currentTimeMillis();
+        mStartElapsed = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Takes the network and database figures from a finished pipeline run.
+     */
+    synchronized void addOutcome(SyncPipeline.Outcome outcome) {
+        mLocations += outcome.forecasts.size();
+        for (ForecastTransformer.Transformed forecast : outcome.forecasts) {
+            ForecastFetcher.Result result = forecast.result;
+            mConnectMillis += result.connectMillis;
+            mTtfbMillis += result.ttfbMillis;
+            mBytesRead += result.bytesRead;
+            mParseMillis += result.parseMillis;
+            // A cached forecast was counted by the sync that downloaded it.
+            if (result.forecast != null && !result.fromCache) {
+                mDaysAccepted += result.forecast.getValidDayCount();
+                mDaysQuarantined += result.forecast.quarantined.size();
+            }
+        }
+        mRowsInserted += outcome.persisted.inserted;
+        mRowsUpdated += outcome.persisted.updated;
+        mRowsDeleted += outcome.persisted.deleted;
+    }
+
+    synchronized void setCacheStats(int hits, int misses, long bytes) {
+        mCacheHits = hits;
+        mCacheMisses = misses;
+        mCacheBytes = bytes;
+    }
+
+    /**
+     * Marks the sync as done.  The row is written now, or once fan-out finishes if it's still
+     * running.
+     *
+     * @param fanOutPending true if the sync handed work to fan-out
+     */
+    synchronized void onSyncFinished(@SunshineSyncAdapter.LocationStatus int outcome,
+                                     boolean fanOutPending) {
+        mOutcome = outcome;
+        mDuration = SystemClock.elapsedRealtime() - mStartElapsed;
+        mSyncFinished = true;
+        if (!fanOutPending) {
+            mFanOutFinished = true;
+        }
+        writeIfDone();
+    }
+
+    @Override
+    public synchronized void onFanOutFinished(long millis, ForecastFanOut.Dispatch dispatch) {
+        mFanOutMillis = millis;
+        mDispatch = dispatch;
+        mFanOutFinished = true;
+        writeIfDone();
+    }
+
+    private long getConsumerMillis(String consumer) {
+        Long millis = mDispatch == null ? null : mDispatch.consumerMillis.get(consumer);
+        return millis == null ? FAN_OUT_SKIPPED : millis;
+    }
+
+    private void writeIfDone() {
+        if (!mSyncFinished || !mFanOutFinished) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_START_TIME, mStartTime);
+        values.put(SyncMetricsEntry.COLUMN_DURATION, mDuration);
+        values.put(SyncMetricsEntry.COLUMN_LOCATIONS, mLocations);
+        values.put(SyncMetricsEntry.COLUMN_NETWORK_TYPE, mNetworkType);
+        values.put(SyncMetricsEntry.COLUMN_CONNECT_TIME, mConnectMillis);
+        values.put(SyncMetricsEntry.COLUMN_TTFB, mTtfbMillis);
+        values.put(SyncMetricsEntry.COLUMN_BYTES_READ, mBytesRead);
+        values.put(SyncMetricsEntry.COLUMN_PARSE_TIME, mParseMillis);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_INSERTED, mRowsInserted);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_UPDATED, mRowsUpdated);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_DELETED, mRowsDeleted);
+        values.put(SyncMetricsEntry.COLUMN_FAN_OUT_TIME, mFanOutMillis);
+        values.put(SyncMetricsEntry.COLUMN_WATCH_TIME,
+                getConsumerMillis(ForecastFanOut.CONSUMER_WATCH));
+        values.put(SyncMetricsEntry.COLUMN_WIDGETS_TIME,
+                getConsumerMillis(ForecastFanOut.CONSUMER_WIDGETS));
+        values.put(SyncMetricsEntry.COLUMN_MUZEI_TIME,
+                getConsumerMillis(ForecastFanOut.CONSUMER_MUZEI));
+        values.put(SyncMetricsEntry.COLUMN_NOTIFICATION_TIME,
+                getConsumerMillis(ForecastFanOut.CONSUMER_NOTIFICATION));
+        values.put(SyncMetricsEntry.COLUMN_CACHE_HITS, mCacheHits);
+        values.put(SyncMetricsEntry.COLUMN_CACHE_MISSES, mCacheMisses);
+        values.put(SyncMetricsEntry.COLUMN_CACHE_BYTES, mCacheBytes);
+        values.put(SyncMetricsEntry.COLUMN_DAYS_ACCEPTED, mDaysAccepted);
+        values.put(SyncMetricsEntry.COLUMN_DAYS_QUARANTINED, mDaysQuarantined);
+        values.put(SyncMetricsEntry.COLUMN_OUTCOME, mOutcome);
+        try {
+            mContext.getContentResolver().insert(SyncMetricsEntry.CONTENT_URI, values);
+        } catch (RuntimeException e) {
+            // Losing a metrics row is no reason to fail a sync.
+            Log.e(LOG_TAG, "Error recording sync metrics", e);
+        }
+    }
+}
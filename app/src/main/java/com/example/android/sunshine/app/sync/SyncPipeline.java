@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a sync as a chain of stages: fetch (which parses as it downloads), transform, persist
+ * and fan-out.
+ *
+ * Fetches run on their own pool and hand their results to the sync thread through a bounded
+ * queue, so each location is transformed as soon as it arrives while the others are still
+ * downloading.  Persisting happens once everything is transformed, in one write.  Fan-out goes
+ * to a single background thread with a short queue, so a slow consumer never holds up the sync
+ * or the database.  Every stage is timed.
+ *
+ * A run stops waiting for fetches when its {@link SyncDeadline} passes.  If the sync is cancelled
+ * nothing is persisted or fanned out, so a cancelled sync leaves the database as it found it.
+ */
+class SyncPipeline {
+    private static final String LOG_TAG = SyncPipeline.class.getSimpleName();
+
+    // How many locations are fetched at once when syncing several of them.
+    static final int MAX_PARALLEL_FETCHES = 3;
+
+    // Fan-outs waiting behind a slow one.  Consumers read the latest data from the provider, so
+    // when syncs pile up the oldest waiting fan-out can be dropped without losing anything.
+    private static final int FAN_OUT_QUEUE_CAPACITY = 2;
+    private static final long FAN_OUT_KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor sFanOutExecutor = newFanOutExecutor();
+
+    /**
+     * Hears how long a run's fan-out took, on the fan-out thread.
+     */
+    interface FanOutListener {
+        /**
+         * @param millis how long fan-out took, or {@link SyncMetrics#FAN_OUT_SKIPPED} if a newer
+         *               run's fan-out replaced it before it started
+         * @param dispatch who fan-out told, and how long each took; null if it was skipped or
+         *                 failed
+         */
+        void onFanOutFinished(long millis, ForecastFanOut.Dispatch dispatch);
+    }
+
+    /**
+     * How long each stage took, in milliseconds.  Fetch and transform are summed over every
+     * location, so with parallel fetches they can add up to more than the sync did.
+     */
+    static class StageTimings {
+        private final Map<String, Long> mMillis = new LinkedHashMap<String, Long>();
+
+        synchronized void add(String stage, long millis) {
+            Long total = mMillis.get(stage);
+            mMillis.put(stage, total == null ? millis : total + millis);
+        }
+
+        /**
+         * @return the time spent in the stage, or 0 if it didn't run
+         */
+        synchronized long get(String stage) {
+            Long total = mMillis.get(stage);
+            return total == null ? 0 : total;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mMillis.toString();
+        }
+    }
+
+    /**
+     * What a run of the pipeline produced.  Fan-out may still be running when this is returned.
+     */
+    static class Outcome {
+        final List<ForecastTransformer.Transformed> forecasts;
+        final ForecastPersister.Persisted persisted;
+        final @SunshineSyncAdapter.LocationStatus int preferredStatus;
+        // True if fan-out was handed work; the listener hears about it once it's done.
+        final boolean fanOutPending;
+        // True if the sync was cancelled before anything was persisted.
+        final boolean cancelled;
+        final StageTimings timings;
+
+        Outcome(List<ForecastTransformer.Transformed> forecasts,
+                ForecastPersister.Persisted persisted,
+                @SunshineSyncAdapter.LocationStatus int preferredStatus,
+                boolean fanOutPending,
+                boolean cancelled,
+                StageTimings timings) {
+            this.forecasts = forecasts;
+            this.persisted = persisted;
+            this.preferredStatus = preferredStatus;
+            this.fanOutPending = fanOutPending;
+            this.cancelled = cancelled;
+            this.timings = timings;
+        }
+    }
+
+    private final SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> mFetchStage;
+    private final SyncStage<ForecastFetcher.Result, ForecastTransformer.Transformed> mTransformStage;
+    private final SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted>
+            mPersistStage;
+    private final SyncStage<ForecastFanOut.Event, ForecastFanOut.Dispatch> mFanOutStage;
+    private final SyncDeadline mDeadline;
+
+    SyncPipeline(SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> fetchStage,
+                 SyncStage<ForecastFetcher.Result, ForecastTransformer.Transformed> transformStage,
+                 SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted>
+                         persistStage,
+                 SyncStage<ForecastFanOut.Event, ForecastFanOut.Dispatch> fanOutStage) {
+        this(fetchStage, transformStage, persistStage, fanOutStage, SyncDeadline.none());
+    }
+
+    /**
+     * @param deadline how long to wait for fetches, and whether the sync was cancelled
+     */
+    SyncPipeline(SyncStage<ForecastFetcher.Request, ForecastFetcher.Result> fetchStage,
+                 SyncStage<ForecastFetcher.Result, ForecastTransformer.Transformed> transformStage,
+                 SyncStage<List<ForecastTransformer.Transformed>, ForecastPersister.Persisted>
+                         persistStage,
+                 SyncStage<ForecastFanOut.Event, ForecastFanOut.Dispatch> fanOutStage,
+                 SyncDeadline deadline) {
+        mFetchStage = fetchStage;
+        mTransformStage = transformStage;
+        mPersistStage = persistStage;
+        mFanOutStage = fanOutStage;
+        mDeadline = deadline;
+    }
+
+    /**
+     * Runs the pipeline for every request.  Returns once the data is stored; fan-out carries on
+     * in the background.
+     *
+     * @param preferredRequest the request for the user's preferred location, one of requests
+     * @param fanOutListener told when fan-out finishes, if there was any; may be null
+     */
+    Outcome run(List<ForecastFetcher.Request> requests,
+                ForecastFetcher.Request preferredRequest,
+                FanOutListener fanOutListener) {
+        StageTimings timings = new StageTimings();
+
+        List<ForecastTransformer.Transformed> forecasts = fetchAndTransform(requests, timings);
+
+        if (mDeadline.isCancelled()) {
+            // Whatever we fetched is thrown away rather than half stored.  The validators are only
+            // saved by the persist stage, so the next sync asks for all of it again.
+            Log.d(LOG_TAG, "Sync cancelled, nothing persisted");
+            return new Outcome(forecasts, new ForecastPersister.Persisted(),
+                    SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN, false, true, timings);
+        }
+
+        @SunshineSyncAdapter.LocationStatus int preferredStatus =
+                SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+        ContentValues preferredToday = null;
+        boolean preferredAnswered = false;
+        for (ForecastTransformer.Transformed forecast : forecasts) {
+            if (forecast.result.request == preferredRequest) {
+                preferredStatus = forecast.locationStatus;
+                preferredToday = forecast.today;
+                preferredAnswered = forecast.locationStatus
+                        == SunshineSyncAdapter.LOCATION_STATUS_OK && !forecast.result.fromCache;
+            }
+        }
+
+        ForecastPersister.Persisted persisted = runStage(mPersistStage, forecasts, timings);
+
+        // Rows the upsert left alone are no news to anyone.
+        boolean rangeChanged = persisted.inserted + persisted.updated + persisted.deleted > 0;
+        // The server answering for the preferred location is enough, even with a 304: the daily
+        // notification may be due, and fan-out is what decides that.
+        boolean fanOutPending = rangeChanged || preferredToday != null || preferredAnswered;
+        if (fanOutPending) {
+            sFanOutExecutor.execute(new FanOutTask(mFanOutStage,
+                    new ForecastFanOut.Event(rangeChanged, preferredToday),
+                    timings, fanOutListener));
+        }
+
+        return new Outcome(forecasts, persisted, preferredStatus, fanOutPending, false, timings);
+    }
+
+    /**
+     * Fetches every request, running up to MAX_PARALLEL_FETCHES of them at once, and transforms
+     * each result as it comes in.  The results come back in the order they finished.  Fetches
+     * still running when the deadline passes count as timed out.
+     */
+    private List<ForecastTransformer.Transformed> fetchAndTransform(
+            List<ForecastFetcher.Request> requests, final StageTimings timings) {
+        List<ForecastTransformer.Transformed> forecasts =
+                new ArrayList<ForecastTransformer.Transformed>(requests.size());
+
+        if (requests.size() == 1) {
+            // No point spinning up threads for a single location.
+            ForecastFetcher.Result result = runStage(mFetchStage, requests.get(0), timings);
+            forecasts.add(runStage(mTransformStage, result, timings));
+            return forecasts;
+        }
+
+        // Bounded, so fetches that finish while the sync thread is busy transforming wait
+        // instead of piling up parsed forecasts in memory.
+        final BlockingQueue<ForecastFetcher.Result> fetched =
+                new ArrayBlockingQueue<ForecastFetcher.Result>(MAX_PARALLEL_FETCHES);
+        ExecutorService fetchExecutor =
+                Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_FETCHES, requests.size()));
+        List<ForecastFetcher.Request> received =
+                new ArrayList<ForecastFetcher.Request>(requests.size());
+        try {
+            for (final ForecastFetcher.Request request : requests) {
+                fetchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ForecastFetcher.Result result;
+                        try {
+                            result = runStage(mFetchStage, request, timings);
+                        } catch (RuntimeException e) {
+                            Log.e(LOG_TAG, "Error fetching " + request.locationSetting, e);
+                            result = newFailedResult(request,
+                                    ForecastFetcher.RESULT_SERVER_DOWN);
+                        }
+                        try {
+                            fetched.put(result);
+                        } catch (InterruptedException e) {
+                            // The sync was cancelled and nobody is waiting for this any more.
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+
+            for (int i = 0; i < requests.size(); i++) {
+                // The fetcher gives up on its own at the deadline, but a lookup stuck in DNS
+                // ignores every timeout, so don't wait on it past the deadline either.
+                ForecastFetcher.Result result =
+                        fetched.poll(mDeadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+                if (result == null) {
+                    Log.d(LOG_TAG, "Deadline passed with " + (requests.size() - i)
+                            + " fetch(es) outstanding");
+                    addMissing(requests, received, ForecastFetcher.RESULT_TIMED_OUT,
+                            forecasts, timings);
+                    break;
+                }
+                received.add(result.request);
+                forecasts.add(runStage(mTransformStage, result, timings));
+            }
+        } catch (InterruptedException e) {
+            // The sync was cancelled.  Whatever we didn't get counts as a cancelled fetch.
+            Thread.currentThread().interrupt();
+            addMissing(requests, received, ForecastFetcher.RESULT_CANCELLED, forecasts, timings);
+        } finally {
+            fetchExecutor.shutdownNow();
+        }
+        return forecasts;
+    }
+
+    /**
+     * Transforms a result with the given status for every request that never came back.
+     */
+    private void addMissing(List<ForecastFetcher.Request> requests,
+                            List<ForecastFetcher.Request> received, int status,
+                            List<ForecastTransformer.Transformed> forecasts, StageTimings timings) {
+        for (ForecastFetcher.Request request : requests) {
+            if (!received.contains(request)) {
+                forecasts.add(runStage(mTransformStage, newFailedResult(request, status),
+                        timings));
+            }
+        }
+    }
+
+    /**
+     * Runs the fan-out stage for one pipeline run and reports how long it took.
+     */
+    private static class FanOutTask implements Runnable {
+        private final SyncStage<ForecastFanOut.Event, ForecastFanOut.Dispatch> mStage;
+        private final ForecastFanOut.Event mEvent;
+        private final StageTimings mTimings;
+        private final FanOutListener mListener;
+
+        FanOutTask(SyncStage<ForecastFanOut.Event, ForecastFanOut.Dispatch> stage, ForecastFanOut.Event event,
+                   StageTimings timings, FanOutListener listener) {
+            mStage = stage;
+            mEvent = event;
+            mTimings = timings;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            ForecastFanOut.Dispatch dispatch = null;
+            try {
+                dispatch = mStage.process(mEvent);
+            } catch (RuntimeException e) {
+                // A broken consumer must not take the others (or the process) down with it.
+                Log.e(LOG_TAG, "Error during fan-out", e);
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            mTimings.add(mStage.getName(), elapsed);
+            Log.d(LOG_TAG, "Fan-out took " + elapsed + "ms");
+            if (mListener != null) {
+                mListener.onFanOutFinished(elapsed, dispatch);
+            }
+        }
+
+        void drop() {
+            Log.d(LOG_TAG, "Dropping a fan-out that a newer sync supersedes");
+            if (mListener != null) {
+                mListener.onFanOutFinished(SyncMetrics.FAN_OUT_SKIPPED, null);
+            }
+        }
+    }
+
+    private static <I, O> O runStage(SyncStage<I, O> stage, I input, StageTimings timings) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            return stage.process(input);
+        } finally {
+            timings.add(stage.getName(), SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    private static ForecastFetcher.Result newFailedResult(ForecastFetcher.Request request,
+                                                          int status) {
+        ForecastFetcher.Result result = new ForecastFetcher.Result(request);
+        result.status = status;
+        return result;
+    }
+
+    private static ThreadPoolExecutor newFanOutExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                FAN_OUT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(FAN_OUT_QUEUE_CAPACITY),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // Like DiscardOldestPolicy, but tell the dropped run's listener.
+                        Runnable oldest = executor.getQueue().poll();
+                        if (oldest instanceof FanOutTask) {
+                            ((FanOutTask) oldest).drop();
+                        }
+                        executor.execute(r);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Sits in front of {@link SunshineSyncAdapter#syncImmediately(Context)} so that bursts of
+ * requests turn into a single sync.  Requests arriving within COALESCE_WINDOW_MILLIS of each
+ * other are merged, and requests that don't have to happen (the preferred location was synced
+ * successfully a moment ago) are dropped.  Each call returns why it was or wasn't scheduled.
+ */
+public class SyncRequestCoordinator {
+    private static final String LOG_TAG = SyncRequestCoordinator.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({REQUEST_SCHEDULED, REQUEST_MERGED, REQUEST_SKIPPED_FRESH})
+    public @interface RequestResult {}
+
+    // A sync will start once the coalescing window closes.
+    public static final int REQUEST_SCHEDULED = 0;
+    // A sync was already waiting for the window to close; this request rides along with it.
+    public static final int REQUEST_MERGED = 1;
+    // The preferred location was synced recently enough that nothing needs to happen.
+    public static final int REQUEST_SKIPPED_FRESH = 2;
+
+    // Requests closer together than this become one sync.
+    private static final long COALESCE_WINDOW_MILLIS = 1000;
+    // A successful sync younger than this satisfies requests that aren't forced.
+    private static final long FRESHNESS_MILLIS = 10 * 60 * 1000;
+
+    static final String PREFS_NAME = "sync_coordinator";
+    private static final String KEY_LAST_SUCCESS_PREFIX = "last_success|";
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final Object sLock = new Object();
+    // The sync waiting for the coalescing window to close, or null; guarded by sLock.
+    private static Runnable sPendingSync;
+
+    private SyncRequestCoordinator() {
+    }
+
+    /**
+     * Asks for a sync of the preferred location.
+     *
+     * @param context The context used to request the sync
+     * @param force true if the request must not be skipped because of a recent sync, e.g. the
+     *              user just changed their location
+     * @return why the request was scheduled, merged or skipped
+     */
+    public static @RequestResult int requestSync(Context context, boolean force) {
+        final Context appContext = context.getApplicationContext();
+        String location = Utility.getPreferredLocation(appContext);
+
+        if (!force && isFresh(appContext, location)) {
+            Log.d(LOG_TAG, "Skipping sync request, " + location + " is still fresh");
+            return REQUEST_SKIPPED_FRESH;
+        }
+
+        synchronized (sLock) {
+            if (sPendingSync != null) {
+                Log.d(LOG_TAG, "Merging sync request into the pending one");
+                return REQUEST_MERGED;
+            }
+            sPendingSync = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (sLock) {
+                        if (sPendingSync != this) {
+                            return;
+                        }
+                        sPendingSync = null;
+                    }
+                    SunshineSyncAdapter.syncImmediately(appContext);
+                }
+            };
+            sHandler.postDelayed(sPendingSync, COALESCE_WINDOW_MILLIS);
+        }
+        return REQUEST_SCHEDULED;
+    }
+
+    /**
+     * Drops the sync waiting for the coalescing window, if there is one, so tests can request
+     * syncs without starting any.
+     */
+    static void cancelPendingSync() {
+        synchronized (sLock) {
+            if (sPendingSync != null) {
+                sHandler.removeCallbacks(sPendingSync);
+                sPendingSync = null;
+            }
+        }
+    }
+
+    /**
+     * Records that a location was just synced successfully.  Called by the sync adapter.
+     */
+    static void recordSuccessfulSync(Context context, String location) {
+        getPreferences(context).edit()
+                .putLong(KEY_LAST_SUCCESS_PREFIX + location, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * @return when the location was last synced successfully, or 0 if it never was
+     */
+    public static long getLastSuccessfulSync(Context context, String location) {
+        return getPreferences(context).getLong(KEY_LAST_SUCCESS_PREFIX + location, 0);
+    }
+
+    private static boolean isFresh(Context context, String location) {
+        long age = System.currentTimeMillis() - getLastSuccessfulSync(context, location);
+        return age >= 0 && age < FRESHNESS_MILLIS;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
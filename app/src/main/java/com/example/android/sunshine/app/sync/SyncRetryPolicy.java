@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Random;
+
+/**
+ * Decides whether the sync adapter may call a server endpoint, based on how the last calls went.
+ *
+ * Each failure (server down or sending garbage) pushes the next attempt back exponentially, with
+ * jitter so devices that failed together don't all come back at the same moment.  After
+ * BREAKER_THRESHOLD failures in a row the circuit breaker opens and nothing is sent for a while;
+ * once that time is up a single probe is let through (half open), and its outcome either closes
+ * the breaker or opens it again.
+ *
+ * The state is persisted, so it survives the process being killed between syncs.
+ */
+public class SyncRetryPolicy {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    public @interface BreakerState {}
+
+    // Requests flow normally (possibly after a backoff delay).
+    public static final int STATE_CLOSED = 0;
+    // Too many failures; requests are refused until the open period is over.
+    public static final int STATE_OPEN = 1;
+    // The open period is over and one probe request is allowed through.
+    public static final int STATE_HALF_OPEN = 2;
+
+    static final long BASE_BACKOFF_MILLIS = 30 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+    static final int BREAKER_THRESHOLD = 5;
+    static final long BREAKER_OPEN_MILLIS = 30 * 60 * 1000;
+
+    static final String PREFS_NAME = "sync_retry_policy";
+    private static final String KEY_FAILURES = "failures";
+    static final String KEY_NEXT_ATTEMPT = "next_attempt";
+    private static final String KEY_STATE = "state";
+
+    private static final Random sRandom = new Random();
+
+    private final SharedPreferences mPrefs;
+    private final String mEndpoint;
+
+    private SyncRetryPolicy(Context context, String endpoint) {
+        mPrefs = getPreferences(context);
+        mEndpoint = endpoint;
+    }
+
+    static SyncRetryPolicy forEndpoint(Context context, String endpoint) {
+        return new SyncRetryPolicy(context, endpoint);
+    }
+
+    /**
+     * @param manual true if the user asked for this sync.  Manual syncs skip the backoff delay,
+     *               but not an open circuit breaker.
+     * @return 0 if a request may be sent now, otherwise how long to wait in milliseconds
+     */
+    synchronized long getRetryDelayMillis(boolean manual) {
+        long wait = getNextAttemptTime(mPrefs, mEndpoint) - System.currentTimeMillis();
+        switch (getState(mPrefs, mEndpoint)) {
+            case STATE_OPEN:
+            case STATE_HALF_OPEN:
+                if (wait > 0) {
+                    // Still open, or a probe is already on its way.
+                    return wait;
+                }
+                // Time's up (or the last probe never reported back): let a single probe
+                // through, and hold everything else back until we know how it went.
+                mPrefs.edit()
+                        .putInt(key(mEndpoint, KEY_STATE), STATE_HALF_OPEN)
+                        .putLong(key(mEndpoint, KEY_NEXT_ATTEMPT),
+                                System.currentTimeMillis() + BREAKER_OPEN_MILLIS)
+                        .commit();
+                return 0;
+            default:
+                return manual ? 0 : Math.max(wait, 0);
+        }
+    }
+
+    synchronized void recordSuccess() {
+        mPrefs.edit()
+                .putInt(key(mEndpoint, KEY_FAILURES), 0)
+                .putLong(key(mEndpoint, KEY_NEXT_ATTEMPT), 0)
+                .putInt(key(mEndpoint, KEY_STATE), STATE_CLOSED)
+                .commit();
+    }
+
+    /**
+     * @return when the next attempt is allowed, in milliseconds since the epoch
+     */
+    synchronized long recordFailure() {
+        int failures = mPrefs.getInt(key(mEndpoint, KEY_FAILURES), 0) + 1;
+
+        @BreakerState int state;
+        long delay;
+        if (failures >= BREAKER_THRESHOLD) {
+            state = STATE_OPEN;
+            delay = BREAKER_OPEN_MILLIS;
+        } else {
+            state = STATE_CLOSED;
+            delay = getBackoffMillis(failures);
+        }
+        // "Equal jitter": wait at least half the delay, and a random amount of the other half.
+        delay = delay / 2 + (long) (sRandom.nextDouble() * (delay / 2));
+
+        long nextAttempt = System.currentTimeMillis() + delay;
+        mPrefs.edit()
+                .putInt(key(mEndpoint, KEY_FAILURES), failures)
+                .putLong(key(mEndpoint, KEY_NEXT_ATTEMPT), nextAttempt)
+                .putInt(key(mEndpoint, KEY_STATE), state)
+                .commit();
+        return nextAttempt;
+    }
+
+    synchronized @BreakerState int getState() {
+        return getState(mPrefs, mEndpoint);
+    }
+
+    /**
+     * @return the backoff after this many failures in a row, before jitter: BASE_BACKOFF_MILLIS
+     * doubled for each failure after the first, up to MAX_BACKOFF_MILLIS
+     */
+    static long getBackoffMillis(int failures) {
+        long backoff = BASE_BACKOFF_MILLIS;
+        for (int i = 1; i < failures && backoff < MAX_BACKOFF_MILLIS; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param c Context used to get the SharedPreferences
+     * @return the circuit breaker state for the forecast server
+     */
+    public static @BreakerState int getState(Context c) {
+        return getState(getPreferences(c), OpenWeatherMapSource.FORECAST_BASE_URL);
+    }
+
+    /**
+     * @param c Context used to get the SharedPreferences
+     * @return when the next request to the forecast server is allowed, in milliseconds since the
+     * epoch; 0 if there's no restriction
+     */
+    public static long getNextAttemptTime(Context c) {
+        return getNextAttemptTime(getPreferences(c), OpenWeatherMapSource.FORECAST_BASE_URL);
+    }
+
+    @SuppressWarnings("ResourceType")
+    private static @BreakerState int getState(SharedPreferences prefs, String endpoint) {
+        return prefs.getInt(key(endpoint, KEY_STATE), STATE_CLOSED);
+    }
+
+    private static long getNextAttemptTime(SharedPreferences prefs, String endpoint) {
+        return prefs.getLong(key(endpoint, KEY_NEXT_ATTEMPT), 0);
+    }
+
+    static String key(String endpoint, String field) {
+        return endpoint + "|" + field;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
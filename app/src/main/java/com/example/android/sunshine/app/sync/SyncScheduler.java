@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.widget.DetailWidgetProvider;
+import com.example.android.sunshine.app.widget.TodayWidgetProvider;
+
+import java.util.Calendar;
+
+/**
+ * Picks the periodic sync interval from what we already know instead of always using
+ * {@link SunshineSyncAdapter#SYNC_INTERVAL}.
+ *
+ * The base interval stretches while syncs keep bringing back the same forecast and shrinks when
+ * the forecast starts moving.  On top of that, syncs are spaced out overnight and on metered
+ * networks, and brought closer together while someone is looking at the data (the app was used
+ * recently or there are widgets on the home screen).
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    // All intervals are in seconds, like SunshineSyncAdapter.SYNC_INTERVAL.
+    private static final int MIN_INTERVAL = 60 * 60;
+    private static final int MAX_INTERVAL = 60 * 60 * 12;
+
+    // How the base interval reacts to each sync.
+    private static final float STABLE_GROWTH = 1.5f;
+    private static final float VOLATILE_SHRINK = 0.5f;
+    // This many significant changes in one sync means the weather is on the move.
+    private static final int VOLATILE_CHANGES = 2;
+
+    // Modifiers applied to the base interval.
+    private static final float NIGHT_FACTOR = 2f;
+    private static final float METERED_FACTOR = 1.5f;
+    private static final float VISIBLE_FACTOR = 0.75f;
+    private static final int NIGHT_START_HOUR = 0;
+    private static final int NIGHT_END_HOUR = 6;
+    // The app counts as visible if it was in the foreground this recently.
+    private static final long RECENTLY_VISIBLE_MILLIS = 60 * 60 * 1000;
+
+    // Don't bother rescheduling for changes smaller than this fraction of the current interval.
+    private static final float RESCHEDULE_THRESHOLD = 0.1f;
+
+    private static final String PREFS_NAME = "sync_scheduler";
+    private static final String KEY_BASE_INTERVAL = "base_interval";
+    private static final String KEY_CONFIGURED_INTERVAL = "configured_interval";
+    private static final String KEY_LAST_VISIBLE = "last_visible";
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * Records that the app's UI is in the foreground.  Call from onResume.
+     */
+    public static void onAppVisible(Context context) {
+        getPreferences(context).edit()
+                .putLong(KEY_LAST_VISIBLE, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * Adjusts the periodic sync after a sync has finished.
+     *
+     * @param significantChanges how many days changed condition or moved temperature, as
+     *                           reported by the provider's upsert; 0 if nothing was stored
+     */
+    static void onSyncFinished(Context context, int significantChanges) {
+        SharedPreferences prefs = getPreferences(context);
+        int baseInterval = prefs.getInt(KEY_BASE_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+
+        if (significantChanges >= VOLATILE_CHANGES) {
+            baseInterval = (int) (baseInterval * VOLATILE_SHRINK);
+        } else if (significantChanges == 0) {
+            baseInterval = (int) (baseInterval * STABLE_GROWTH);
+        }
+        baseInterval = clamp(baseInterval);
+
+        int interval = clamp((int) (baseInterval * getConditionsFactor(context)));
+        int configuredInterval =
+                prefs.getInt(KEY_CONFIGURED_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+
+        SharedPreferences.Editor editor = prefs.edit().putInt(KEY_BASE_INTERVAL, baseInterval);
+        if (Math.abs(interval - configuredInterval) > configuredInterval * RESCHEDULE_THRESHOLD) {
+            Log.d(LOG_TAG, "Rescheduling periodic sync every " + interval + "s (was "
+                    + configuredInterval + "s, " + significantChanges + " significant changes)");
+            SunshineSyncAdapter.configurePeriodicSync(context, interval, interval / 3);
+            editor.putInt(KEY_CONFIGURED_INTERVAL, interval);
+        }
+        editor.apply();
+    }
+
+    /**
+     * @return the multiplier for the current time of day, network and visibility
+     */
+    private static float getConditionsFactor(Context context) {
+        float factor = 1f;
+
+        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        if (hour >= NIGHT_START_HOUR && hour < NIGHT_END_HOUR) {
+            factor *= NIGHT_FACTOR;
+        }
+
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm.isActiveNetworkMetered()) {
+            factor *= METERED_FACTOR;
+        }
+
+        if (isDataVisible(context)) {
+            factor *= VISIBLE_FACTOR;
+        }
+        return factor;
+    }
+
+    private static boolean isDataVisible(Context context) {
+        long sinceVisible = System.currentTimeMillis()
+                - getPreferences(context).getLong(KEY_LAST_VISIBLE, 0);
+        if (sinceVisible < RECENTLY_VISIBLE_MILLIS) {
+            return true;
+        }
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        return appWidgetManager.getAppWidgetIds(
+                        new ComponentName(context, TodayWidgetProvider.class)).length > 0
+                || appWidgetManager.getAppWidgetIds(
+                        new ComponentName(context, DetailWidgetProvider.class)).length > 0;
+    }
+
+    private static int clamp(int interval) {
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
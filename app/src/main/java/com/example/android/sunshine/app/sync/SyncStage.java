@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+/**
+ * One step of the {@link SyncPipeline}.  A stage takes the previous stage's output and produces
+ * the input of the next one; it knows nothing about threads or queues, so it can be run and
+ * tested on its own.
+ *
+ * @param <I> what the stage consumes
+ * @param <O> what the stage produces
+ */
+interface SyncStage<I, O> {
+
+    /**
+     * @return a short name for logs and timings
+     */
+    String getName();
+
+    O process(I input);
+}
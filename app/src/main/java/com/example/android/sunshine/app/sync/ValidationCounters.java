@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * Running totals of what forecast validation let through and what it quarantined, by field, so
+ * a server that starts sending broken records shows up without digging through logs.
+ */
+class ValidationCounters {
+    private static final String PREFS_NAME = "forecast_validation";
+
+    private static final String KEY_ACCEPTED_DAYS = "accepted_days";
+    private static final String KEY_QUARANTINED_DAYS = "quarantined_days";
+    private static final String KEY_INVALID_PREFIX = "invalid_";
+
+    private ValidationCounters() {
+    }
+
+    /**
+     * Adds a freshly parsed forecast to the totals.  A forecast read back from the cache was
+     * already counted when it came off the network.
+     */
+    static void record(Context context, OwmForecastParser.Forecast forecast) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        synchronized (ValidationCounters.class) {
+            SharedPreferences.Editor editor = prefs.edit()
+                    .putLong(KEY_ACCEPTED_DAYS, prefs.getLong(KEY_ACCEPTED_DAYS, 0)
+                            + forecast.getValidDayCount())
+                    .putLong(KEY_QUARANTINED_DAYS, prefs.getLong(KEY_QUARANTINED_DAYS, 0)
+                            + forecast.quarantined.size());
+            for (Map.Entry<String, Integer> field : forecast.invalidFields.entrySet()) {
+                String key = KEY_INVALID_PREFIX + field.getKey();
+                editor.putLong(key, prefs.getLong(key, 0) + field.getValue());
+            }
+            editor.apply();
+        }
+    }
+
+    static long getAcceptedDays(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(KEY_ACCEPTED_DAYS, 0);
+    }
+
+    static long getQuarantinedDays(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(KEY_QUARANTINED_DAYS, 0);
+    }
+
+    /**
+     * @param field one of the OwmForecastParser FIELD_ names
+     * @return how many days that field has been invalid in
+     */
+    static long getInvalidCount(Context context, String field) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(KEY_INVALID_PREFIX + field, 0);
+    }
+}
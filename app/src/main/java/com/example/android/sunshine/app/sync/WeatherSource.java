@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Where forecasts come from: how to ask a server for one location's daily forecast, and how to
+ * read its answer.  {@link ForecastFetcher} owns everything in between (conditional requests,
+ * the payload cache, hashing, timings), so those work the same whichever source is plugged in.
+ */
+interface WeatherSource {
+
+    /**
+     * @return a stable name for the server, used to track its health in {@link SyncRetryPolicy}
+     */
+    String getEndpoint();
+
+    /**
+     * Builds the URL of the daily forecast for a request.
+     *
+     * @param days how many days to ask for, starting today
+     */
+    URL getForecastUrl(ForecastFetcher.Request request, int days) throws IOException;
+
+    /**
+     * Parses a response body straight from the stream.  The stream is not closed.
+     *
+     * @throws JSONException if the payload is not what the source sends
+     * @throws IOException if reading from the stream fails
+     */
+    OwmForecastParser.Forecast parse(InputStream in) throws JSONException, IOException;
+
+    /**
+     * Builds the URL of the 3 hour step forecast for a request.
+     *
+     * @param steps how many steps to ask for, starting with the current one
+     */
+    URL getHourlyForecastUrl(ForecastFetcher.Request request, int steps) throws IOException;
+
+    /**
+     * Parses a 3 hour forecast response straight from the stream, handing each step on as it
+     * is read.  The stream is not closed.
+     *
+     * @return the response's message code, as {@link OwmHourlyParser#parse} returns it
+     */
+    int parseHourly(InputStream in, OwmHourlyParser.StepHandler handler)
+            throws JSONException, IOException;
+}
@@ -1,17 +1,40 @@
 package com.example.android.sunshine.app.wear;
 
+import android.database.Cursor;
+import android.net.Uri;
 import android.util.Log;
 
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncRequestCoordinator;
+
+import java.util.concurrent.TimeUnit;
 
 public class WatchfaceWeatherService extends WearableListenerService {
     private static final String TAG = "WatchfaceWeatherService";
 
     private static final String PATH_WEATHER = "/watchface-weather";
 
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    private static final String[] WATCHFACE_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_WEATHER_ID = 0;
+    private static final int INDEX_MAX_TEMP = 1;
+    private static final int INDEX_MIN_TEMP = 2;
+
     @Override
     public void onDataChanged(DataEventBuffer dataEvents) {
         Log.d(TAG, "onDataChanged");
@@ -19,9 +42,56 @@ public class WatchfaceWeatherService extends WearableListenerService {
             if (dataEvent.getType() == DataEvent.TYPE_CHANGED) {
                 String path = dataEvent.getDataItem().getUri().getPath();
                 if (path.equals(PATH_WEATHER)) {
-                    SunshineSyncAdapter.syncImmediately(this);
+                    // The watch asks every time it reconnects, so let recent data satisfy it.
+                    int result = SyncRequestCoordinator.requestSync(this, false);
+                    if (result == SyncRequestCoordinator.REQUEST_SKIPPED_FRESH) {
+                        sendStoredWeather();
+                    }
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Answers the watch from the database when the data we have is fresh enough that a sync
+     * (which would push it as a side effect) isn't worth the network round trip.
+     * onDataChanged runs on a background thread, so blocking here is fine.
+     */
+    private void sendStoredWeather() {
+        String locationQuery = Utility.getPreferredLocation(this);
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                locationQuery, System.currentTimeMillis());
+        Cursor cursor = getContentResolver().query(weatherUri, WATCHFACE_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        double high;
+        double low;
+        int weatherId;
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            high = cursor.getDouble(INDEX_MAX_TEMP);
+            low = cursor.getDouble(INDEX_MIN_TEMP);
+            weatherId = cursor.getInt(INDEX_WEATHER_ID);
+        } finally {
+            cursor.close();
+        }
+
+        GoogleApiClient googleApiClient = new GoogleApiClient.Builder(this)
+                .addApi(Wearable.API)
+                .build();
+        try {
+            ConnectionResult connectionResult =
+                    googleApiClient.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!connectionResult.isSuccess()) {
+                Log.e(TAG, "Failed to connect to GoogleApiClient: " + connectionResult);
+                return;
+            }
+            SunshineSyncAdapter.sendWatchfaceWeather(googleApiClient, high, low, weatherId);
+        } finally {
+            googleApiClient.disconnect();
+        }
+    }
+}